@@ -0,0 +1,267 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * Scores a block of expanded queries in one document-at-a-time pass over the union
+ * of their terms: the postings of a term shared by many of the queries (e.g. a high-df
+ * expansion term) are read and decoded once for the block, instead of once per query.
+ * One top-k heap is kept for each query. <p>
+ * The scores are the same as of IndexSearcher.search() on each query: the term weights
+ * are normalized with the queryNorm of each query, the term scores are summed in double
+ * and multiplied by coord(), as by BooleanScorer, and the ties are broken by docid. <p>
+ * The queries other than a disjunction of TermQuery-s (SHOULD clauses) are searched one by one.
+ * @author dwaipayan
+ */
+public class BatchScorer {
+
+    IndexSearcher   searcher;
+
+    long            numBlocks;
+    long            numTermOccurrences; // terms of the queries scored, summed over the queries
+    long            numTermsRead;       // distinct terms of the blocks, i.e. the postings lists read
+    long            nanos;
+
+    public BatchScorer(IndexSearcher searcher) {
+        this.searcher = searcher;
+    }
+
+    /**
+     * A distinct term of the block, with the queries having it.
+     */
+    static class BlockTerm {
+        Term            term;
+        TermContext     context;    // the term states in the segments
+        List<Integer>   queries = new ArrayList<>();            // index of the queries having the term
+        List<Similarity.SimWeight> weights = new ArrayList<>(); // normalized weight of the term in each of them
+        Similarity.SimScorer[] scorers;     // for the current segment
+        PostingsEnum    postings;           // for the current segment
+    }
+
+    /**
+     * Searches the queries; same as calling IndexSearcher.search(query, numHits) for each.
+     * @param queries The queries
+     * @param numHits Number of top documents to be returned for each query
+     * @return The top documents, in the order of 'queries'
+     * @throws IOException
+     */
+    public synchronized TopDocs[] search(List<? extends Query> queries, int numHits) throws IOException {
+
+        long start = System.nanoTime();
+        int numQueries = queries.size();
+        TopDocs[] results = new TopDocs[numQueries];
+        Similarity similarity = searcher.getSimilarity(true);
+
+        LinkedHashMap<Term, BlockTerm> blockTerms = new LinkedHashMap<>();
+        float[][] coords = new float[numQueries][];
+        boolean[] batched = new boolean[numQueries];
+
+        for (int q = 0; q < numQueries; q++) {
+            Query query = queries.get(q);
+            if(!isBatchable(query)) {
+                results[q] = searcher.search(query, numHits);
+                continue;
+            }
+            batched[q] = true;
+            BooleanQuery booleanQuery = (BooleanQuery) query;
+            List<BooleanClause> clauses = booleanQuery.clauses();
+
+            // as in IndexSearcher.createNormalizedWeight() with BooleanWeight and TermWeight
+            List<Similarity.SimWeight> weights = new ArrayList<>();
+            float sum = 0;
+            for (BooleanClause clause : clauses) {
+                TermQuery termQuery = (TermQuery) clause.getQuery();
+                Term term = termQuery.getTerm();
+                BlockTerm blockTerm = blockTerms.get(term);
+                if(null == blockTerm) {
+                    blockTerm = new BlockTerm();
+                    blockTerm.term = term;
+                    blockTerm.context = TermContext.build(searcher.getTopReaderContext(), term);
+                    blockTerms.put(term, blockTerm);
+                }
+                Similarity.SimWeight weight = similarity.computeWeight(termQuery.getBoost(),
+                    searcher.collectionStatistics(term.field()),
+                    searcher.termStatistics(term, blockTerm.context));
+                sum += weight.getValueForNormalization();
+                weights.add(weight);
+                blockTerm.queries.add(q);
+                blockTerm.weights.add(weight);
+            }
+            sum *= booleanQuery.getBoost() * booleanQuery.getBoost();
+            float norm = similarity.queryNorm(sum);
+            if(Float.isInfinite(norm) || Float.isNaN(norm))
+                norm = 1.0f;
+            for (Similarity.SimWeight weight : weights)
+                weight.normalize(norm, booleanQuery.getBoost());
+
+            int maxCoord = clauses.size();
+            coords[q] = new float[maxCoord + 1];
+            for (int i = 0; i <= maxCoord; i++)
+                coords[q][i] = booleanQuery.isCoordDisabled() ? 1.0f : similarity.coord(i, maxCoord);
+            numTermOccurrences += maxCoord;
+        }
+        numTermsRead += blockTerms.size();
+
+        List<PriorityQueue<ScoreDoc>> heaps = new ArrayList<>();
+        int[] totalHits = new int[numQueries];
+        for (int q = 0; q < numQueries; q++)
+            heaps.add(batched[q] ? new HitQueue(numHits) : null);
+
+        double[] scores = new double[numQueries];
+        int[] overlaps = new int[numQueries];
+        int[] touched = new int[numQueries];
+
+        for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+            Bits liveDocs = leaf.reader().getLiveDocs();
+            PostingsQueue cursors = new PostingsQueue(blockTerms.size());
+            for (BlockTerm blockTerm : blockTerms.values()) {
+                TermState state = blockTerm.context.get(leaf.ord);
+                if(null == state)
+                    continue;   // not in this segment
+                Terms terms = leaf.reader().terms(blockTerm.term.field());
+                TermsEnum termsEnum = terms.iterator();
+                termsEnum.seekExact(blockTerm.term.bytes(), state);
+                blockTerm.postings = termsEnum.postings(null, PostingsEnum.FREQS);
+                blockTerm.scorers = new Similarity.SimScorer[blockTerm.weights.size()];
+                for (int i = 0; i < blockTerm.scorers.length; i++)
+                    blockTerm.scorers[i] = similarity.simScorer(blockTerm.weights.get(i), leaf);
+                if(blockTerm.postings.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+                    cursors.add(blockTerm);
+            }
+
+            while(cursors.size() > 0) {
+                int doc = cursors.top().postings.docID();
+                int numTouched = 0;
+                // all the terms in this document
+                while(cursors.size() > 0 && cursors.top().postings.docID() == doc) {
+                    BlockTerm blockTerm = cursors.top();
+                    if(null == liveDocs || liveDocs.get(doc)) {
+                        int freq = blockTerm.postings.freq();
+                        for (int i = 0; i < blockTerm.scorers.length; i++) {
+                            int q = blockTerm.queries.get(i);
+                            if(0 == overlaps[q])
+                                touched[numTouched++] = q;
+                            scores[q] += blockTerm.scorers[i].score(doc, freq);
+                            overlaps[q]++;
+                        }
+                    }
+                    if(blockTerm.postings.nextDoc() == DocIdSetIterator.NO_MORE_DOCS)
+                        cursors.pop();
+                    else
+                        cursors.updateTop();
+                }
+                // collected in each query having any of them
+                for (int i = 0; i < numTouched; i++) {
+                    int q = touched[i];
+                    float score = (float) scores[q] * coords[q][overlaps[q]];
+                    scores[q] = 0;
+                    overlaps[q] = 0;
+                    totalHits[q]++;
+                    PriorityQueue<ScoreDoc> heap = heaps.get(q);
+                    if(heap.size() < numHits)
+                        heap.add(new ScoreDoc(leaf.docBase + doc, score));
+                    else if(score > heap.top().score) {     // a later doc with the same score loses
+                        heap.top().doc = leaf.docBase + doc;
+                        heap.top().score = score;
+                        heap.updateTop();
+                    }
+                }
+            }
+        }
+
+        for (int q = 0; q < numQueries; q++) {
+            if(!batched[q])
+                continue;
+            PriorityQueue<ScoreDoc> heap = heaps.get(q);
+            ScoreDoc[] hits = new ScoreDoc[heap.size()];
+            for (int i = hits.length - 1; i >= 0; i--)
+                hits[i] = heap.pop();
+            results[q] = new TopDocs(totalHits[q], hits, (hits.length > 0) ? hits[0].score : Float.NaN);
+        }
+
+        numBlocks++;
+        nanos += System.nanoTime() - start;
+        return results;
+    } // ends search()
+
+    /**
+     * True, if the query is a disjunction of TermQuery-s.
+     */
+    static boolean isBatchable(Query query) {
+
+        if(!(query instanceof BooleanQuery))
+            return false;
+        BooleanQuery booleanQuery = (BooleanQuery) query;
+        if(booleanQuery.clauses().isEmpty() || booleanQuery.getMinimumNumberShouldMatch() > 0)
+            return false;
+        for (BooleanClause clause : booleanQuery.clauses())
+            if(clause.getOccur() != BooleanClause.Occur.SHOULD || !(clause.getQuery() instanceof TermQuery))
+                return false;
+        return true;
+    }
+
+    /**
+     * Order of the hits in a top-k heap: the least on the top; of the same score, the larger docid.
+     */
+    static class HitQueue extends PriorityQueue<ScoreDoc> {
+        HitQueue(int size) {super(size);}
+
+        @Override
+        protected boolean lessThan(ScoreDoc a, ScoreDoc b) {
+            return (a.score == b.score) ? a.doc > b.doc : a.score < b.score;
+        }
+    }
+
+    /**
+     * The terms of a segment, ordered by their current docid.
+     */
+    static class PostingsQueue extends PriorityQueue<BlockTerm> {
+        PostingsQueue(int size) {super(Math.max(1, size));}
+
+        @Override
+        protected boolean lessThan(BlockTerm a, BlockTerm b) {
+            return a.postings.docID() < b.postings.docID();
+        }
+    }
+
+    /**
+     * Prints the postings lists read, against the ones a query-at-a-time search reads.
+     */
+    public void report() {
+
+        if(0 == numBlocks)
+            return;
+        System.out.println(String.format("Batched second pass: %d blocks, %d postings lists read for %d query terms "
+            + "(%.0f%% saved), %.1f ms per block",
+            numBlocks, numTermsRead, numTermOccurrences,
+            (numTermOccurrences > 0) ? 100.0 * (numTermOccurrences - numTermsRead) / numTermOccurrences : 0,
+            nanos / 1e6 / numBlocks));
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.RoaringDocIdSet;
+
+/**
+ * Matches only the candidate documents, i.e. the first-pass hits, so that the
+ * expanded query reranks them instead of searching the whole index. The filter
+ * does not score (a FILTER clause): a candidate gets the same score as in a full
+ * re-retrieval. <p>
+ * The conjunction is led by the candidates, the cheaper of the two: the scorer of the
+ * expanded query is advanced from one candidate to the next, instead of visiting every
+ * posting of its terms.
+ * @author dwaipayan
+ */
+public class CandidateFilter extends Filter {
+
+    int[]           docIds;     // the candidates, as sorted global (top level) lucene docids
+
+    public CandidateFilter(ScoreDoc[] candidates) {
+
+        docIds = new int[candidates.length];
+        for (int i = 0; i < candidates.length; i++)
+            docIds[i] = candidates[i].doc;
+        Arrays.sort(docIds);
+    }
+
+    /**
+     * Returns 'query' restricted to the candidates.
+     * @param query The query to rerank with
+     * @param candidates The documents to be reranked
+     * @return The restricted query
+     */
+    public static Query restrict(Query query, ScoreDoc[] candidates) {
+
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.setDisableCoord(true);  // the score is of 'query' alone
+        builder.add(query, BooleanClause.Occur.MUST);
+        builder.add(new ConstantScoreQuery(new CandidateFilter(candidates)), BooleanClause.Occur.FILTER);
+        return builder.build();
+    }
+
+    @Override
+    public DocIdSet getDocIdSet(LeafReaderContext context, Bits acceptDocs) throws IOException {
+
+        int docBase = context.docBase;
+        int maxDoc = context.reader().maxDoc();
+        int from = lowerBound(docBase);
+        int to = lowerBound(docBase + maxDoc);
+        if(from == to)
+            return null;    // no candidate in this segment
+
+        RoaringDocIdSet.Builder builder = new RoaringDocIdSet.Builder(maxDoc);
+        for (int i = from; i < to; i++)
+            builder.add(docIds[i] - docBase);
+        return BitsFilteredDocIdSet.wrap(builder.build(), acceptDocs);
+    }
+
+    /**
+     * Index of the first candidate &gt;= docId; the candidates are distinct.
+     */
+    private int lowerBound(int docId) {
+
+        int pos = Arrays.binarySearch(docIds, docId);
+        return (pos < 0) ? -pos - 1 : pos;
+    }
+
+    /**
+     * Each filter is distinct: the candidates differ from query to query,
+     * and must not be mixed up in the query cache of the searcher.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        return this == obj;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public String toString(String field) {
+        return "candidates("+docIds.length+")";
+    }
+}
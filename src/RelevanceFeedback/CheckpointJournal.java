@@ -0,0 +1,129 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Journal of the queries completed in a res file, kept in 'resPath'.ckpt. <p>
+ * After the result of a query is appended in the res file, a line
+ * "qid TAB end-offset" is appended in the journal, where end-offset is the length of
+ * the res file after that result. A restarted run reads the journal, truncates the
+ * res file at the end of the last completed query (dropping a partially written tail),
+ * and skips the completed queries.
+ * @author dwaipayan
+ */
+public class CheckpointJournal {
+
+    String          resPath;        // path of the res file
+    String          journalPath;    // path of the journal
+    FileWriter      journalWriter;  // appends the entries; open after start() or resume()
+
+    public CheckpointJournal(String resPath) {
+        this.resPath = resPath;
+        this.journalPath = resPath + ".ckpt";
+    }
+
+    /**
+     * Reads the journal of a previous run. A malformed (partially written) last line,
+     * or an entry beyond the end of the res file, ends the journal.
+     * @return End offset in the res file of the completed queries, keyed by qid, in the order of completion
+     * @throws IOException
+     */
+    public LinkedHashMap<String, Long> load() throws IOException {
+
+        LinkedHashMap<String, Long> completed = new LinkedHashMap<>();
+        File journalFile = new File(journalPath);
+        if(!journalFile.exists())
+            return completed;
+
+        long resLength = new File(resPath).length();
+        long lastOffset = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(journalFile))) {
+            String line;
+            while(null != (line = br.readLine())) {
+                String[] tokens = line.split("\t");
+                long offset;
+                try {
+                    if(tokens.length != 2)
+                        break;
+                    offset = Long.parseLong(tokens[1]);
+                } catch (NumberFormatException ex) {
+                    break;
+                }
+                if(offset < lastOffset || offset > resLength)
+                    break;
+                completed.put(tokens[0], offset);
+                lastOffset = offset;
+            }
+        }
+        return completed;
+    } // ends load()
+
+    /**
+     * Starts a fresh journal, emptying the res file.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+
+        new FileWriter(resPath).close();
+        journalWriter = new FileWriter(journalPath);
+    }
+
+    /**
+     * Keeps the leading entries of the journal with the qids in 'keep', and truncates
+     * the res file at the end of the last of them; the rest is to be redone.
+     * @param completed The journal, as returned by load()
+     * @param keep The qids to be kept
+     * @return Number of entries kept
+     * @throws IOException
+     */
+    public int resume(LinkedHashMap<String, Long> completed, Set<String> keep) throws IOException {
+
+        long offset = 0;
+        int kept = 0;
+        journalWriter = new FileWriter(journalPath);
+        for (Map.Entry<String, Long> entry : completed.entrySet()) {
+            if(!keep.contains(entry.getKey()))
+                break;
+            offset = entry.getValue();
+            journalWriter.write(entry.getKey()+"\t"+offset+"\n");
+            kept++;
+        }
+        journalWriter.flush();
+
+        try (RandomAccessFile raf = new RandomAccessFile(resPath, "rw")) {
+            raf.setLength(offset);
+        }
+        return kept;
+    } // ends resume()
+
+    /**
+     * Records a query as completed; to be called after its result is in the res file.
+     * @param qid The query id
+     * @param offset Length of the res file, with the result of the query
+     * @throws IOException
+     */
+    public synchronized void record(String qid, long offset) throws IOException {
+
+        journalWriter.write(qid+"\t"+offset+"\n");
+        journalWriter.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        if(null != journalWriter)
+            journalWriter.close();
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import common.TRECQuery;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+
+/**
+ * Keeps each query within a time budget of 'deadlineMs', degrading it step by step
+ * when the budget would be exceeded: <p>
+ *  1. fewer feedback documents (halved till the predicted cost fits); <p>
+ *  2. a smaller set of candidate expansion terms for RM1 (see RLM.pruneFeedbackTerms()); <p>
+ *  3. the first-pass ranking, without expansion. <p>
+ * The costs are predicted from running averages (EWMA) of the measured costs:
+ * the time per feedback document (term vector reading), the time per term x document
+ * of RM1, the number of distinct feedback terms per document, and the time of the second pass.
+ * Both the searches are run with a TimeLimitingCollector, stopping at the deadline
+ * (within the resolution of its global counter, about 20 ms). <p>
+ * A degraded query is tagged in the run column of the res file, e.g. runName-deadline-D3-T400
+ * (3 feedback documents, 400 candidate terms) or runName-deadline-firstpass.
+ * @author dwaipayan
+ */
+public class DeadlineController {
+
+    RelevanceBasedLanguageModel rblm;
+
+    long            budgetNanos;        // time budget of a query
+    int             minFeedbackDocs;    // number of feedback documents not to go below
+
+    static final double ALPHA = 0.2;    // weight of a new sample in the running averages
+    /**
+     * Running averages of the costs; 0 if not yet measured.
+     */
+    volatile double nanosPerDoc;        // setFeedbackStats(), per feedback document
+    volatile double nanosPerUnit;       // RM1 and expansion, per feedback term x feedback document
+    volatile double termsPerDoc;        // distinct feedback terms, per feedback document
+    volatile double secondPassNanos;    // re-retrieval
+
+    AtomicInteger   numQueries = new AtomicInteger();
+    AtomicInteger   numFewerDocs = new AtomicInteger();
+    AtomicInteger   numFewerTerms = new AtomicInteger();
+    AtomicInteger   numFirstPass = new AtomicInteger();
+    AtomicInteger   numFirstPassTimeout = new AtomicInteger();
+
+    public DeadlineController(RelevanceBasedLanguageModel rblm) {
+
+        this.rblm = rblm;
+        budgetNanos = Long.parseLong(rblm.prop.getProperty("deadlineMs")) * 1000000L;
+        minFeedbackDocs = Integer.parseInt(rblm.prop.getProperty("deadline.minFeedbackDocs", "1"));
+    }
+
+    /**
+     * The search, stopped at 'deadline'.
+     */
+    static class TimedSearch {
+        TopDocs     topDocs;    // the hits collected till the deadline
+        boolean     timedOut;
+    }
+
+    private TimedSearch search(Query query, int numHits, long deadline) throws IOException {
+
+        TimedSearch result = new TimedSearch();
+        TopScoreDocCollector collector = TopScoreDocCollector.create(numHits);
+        long allowedMillis = Math.max(1, (deadline - System.nanoTime()) / 1000000);
+        TimeLimitingCollector limited = new TimeLimitingCollector(collector,
+            TimeLimitingCollector.getGlobalCounter(), allowedMillis);
+        limited.setBaseline();
+        try {
+            rblm.indexSearcher.search(query, limited);
+        }
+        catch (TimeLimitingCollector.TimeExceededException ex) {
+            result.timedOut = true;
+        }
+        result.topDocs = collector.topDocs();
+        return result;
+    }
+
+    /**
+     * Same as RelevanceBasedLanguageModel.retrieveSingleQuery(), within the time budget.
+     * @param query The query
+     * @param luceneQuery The analyzed query
+     * @param rlm The RLM to hold the feedback state of this query
+     * @return The result in TREC-res format, with the run name tagged if degraded
+     * @throws Exception
+     */
+    public StringBuilder retrieveSingleQuery(TRECQuery query, Query luceneQuery, RLM rlm) throws Exception {
+
+        long start = System.nanoTime();
+        long deadline = start + budgetNanos;
+        numQueries.incrementAndGet();
+
+        System.out.println(query.qid+": Initial query: " + luceneQuery.toString(rblm.fieldToSearch));
+        TimedSearch first = search(luceneQuery, rblm.firstPassHits, deadline);
+        if(first.timedOut) {
+            numFirstPassTimeout.incrementAndGet();
+            return rblm.makeResult(query.qid, first.topDocs.scoreDocs, rblm.runName+"-deadline-firstpass-partial");
+        }
+
+        String[] analyzedQuery = luceneQuery.toString(rblm.fieldToSearch).split(" ");
+        if(null != rblm.expansionGate && !rblm.expansionGate.shouldExpand(query, analyzedQuery, first.topDocs))
+            return rblm.makeResult(query.qid, first.topDocs.scoreDocs, rblm.runName+"-gate-firstpass");
+        long expansionStart = System.nanoTime();
+        String tag = "";
+
+        // step 1: fewer feedback documents
+        int numDocs = Math.min(rlm.numFeedbackDocs, first.topDocs.scoreDocs.length);
+        long remaining = deadline - System.nanoTime() - (long)secondPassNanos;
+        if(numDocs > 0 && predictFeedback(numDocs) > remaining) {
+            while(numDocs > minFeedbackDocs && predictFeedback(numDocs) > remaining)
+                numDocs = Math.max(minFeedbackDocs, numDocs / 2);
+            if(predictFeedback(numDocs) > remaining)
+                return firstPass(query, first.topDocs);
+            numFewerDocs.incrementAndGet();
+            tag += "-D"+numDocs;
+        }
+        rlm.numFeedbackDocs = numDocs;
+        long t = System.nanoTime();
+        rlm.setFeedbackStats(first.topDocs, analyzedQuery);
+        int numDocsRead = Math.max(1, rlm.feedbackDocumentVectors.size());
+        int numTerms = rlm.feedbackTermStats.size();
+        synchronized(this) {
+            nanosPerDoc = average(nanosPerDoc, (double)(System.nanoTime() - t) / numDocsRead);
+            termsPerDoc = average(termsPerDoc, (double)numTerms / numDocsRead);
+        }
+
+        // step 2: fewer candidate terms
+        remaining = deadline - System.nanoTime() - (long)secondPassNanos;
+        if(nanosPerUnit * numTerms * numDocsRead > remaining) {
+            int maxTerms = (int) (remaining / (nanosPerUnit * numDocsRead));
+            if(maxTerms < rlm.numFeedbackTerms)
+                return firstPass(query, first.topDocs);
+            rlm.pruneFeedbackTerms(maxTerms, analyzedQuery);
+            numFewerTerms.incrementAndGet();
+            tag += "-T"+maxTerms;
+            numTerms = rlm.feedbackTermStats.size();
+        }
+        t = System.nanoTime();
+        BooleanQuery booleanQuery = rblm.expandQuery(query, first.topDocs, rlm);
+        synchronized(this) {
+            nanosPerUnit = average(nanosPerUnit, (double)(System.nanoTime() - t) / Math.max(1, numTerms * numDocsRead));
+        }
+
+        // step 3: the first-pass ranking, if the second pass does not finish in time
+        if(System.nanoTime() >= deadline)
+            return firstPass(query, first.topDocs);
+        t = System.nanoTime();
+        TimedSearch second = search(rblm.secondPassQuery(booleanQuery, first.topDocs), rblm.numHits, deadline);
+        synchronized(this) {
+            secondPassNanos = average(secondPassNanos, System.nanoTime() - t);
+        }
+        if(second.timedOut)
+            return firstPass(query, first.topDocs);
+        if(null != rblm.expansionGate)
+            rblm.expansionGate.expanded(System.nanoTime() - expansionStart);
+
+        return rblm.makeResult(query.qid, second.topDocs.scoreDocs,
+            tag.isEmpty() ? rblm.runName : rblm.runName+"-deadline"+tag);
+    } // ends retrieveSingleQuery()
+
+    private StringBuilder firstPass(TRECQuery query, TopDocs topDocs) throws IOException {
+
+        numFirstPass.incrementAndGet();
+        System.out.println(query.qid+": deadline: returning the first-pass ranking");
+        return rblm.makeResult(query.qid, topDocs.scoreDocs, rblm.runName+"-deadline-firstpass");
+    }
+
+    /**
+     * Predicted time of setFeedbackStats() and RM1 with 'numDocs' feedback documents.
+     */
+    private synchronized double predictFeedback(int numDocs) {
+        return nanosPerDoc * numDocs + nanosPerUnit * termsPerDoc * numDocs * numDocs;
+    }
+
+    private static double average(double avg, double sample) {
+        return (0 == avg) ? sample : (1 - ALPHA) * avg + ALPHA * sample;
+    }
+
+    /**
+     * Prints the number of degraded queries, and the cost estimates.
+     */
+    public void report() {
+
+        System.out.println(String.format("Deadline %d ms: %d queries; fewer feedback docs: %d, fewer candidate terms: %d, "
+            + "first-pass ranking: %d (first pass timed out: %d)",
+            budgetNanos / 1000000, numQueries.get(), numFewerDocs.get(), numFewerTerms.get(),
+            numFirstPass.get(), numFirstPassTimeout.get()));
+        System.out.println(String.format("Cost estimates: %.3f ms per feedback doc, %.1f ns per RM1 term x doc, "
+            + "%.0f terms per doc, %.3f ms per second pass",
+            nanosPerDoc / 1e6, nanosPerUnit, termsPerDoc, secondPassNanos / 1e6));
+    }
+}
@@ -0,0 +1,449 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import common.IndexRegistry;
+import common.MemoryBudget;
+import common.TRECQuery;
+import common.TopicReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Distributes the queries of a run over worker processes, each with its own copy
+ * (or mount) of the index, through a spool directory shared by all of them: <p>
+ *  java RelevanceBasedLanguageModel -coordinator &lt;properties-file&gt; <p>
+ *  java RelevanceBasedLanguageModel -worker &lt;properties-file&gt; (on each worker machine) <p>
+ * The coordinator splits the query file into tasks of 'distributed.taskSize' (default 10)
+ * consecutive queries. A worker claims a task by renaming it from todo/ to claimed/
+ * (atomic: only one worker gets it), retrieves its queries, and moves the result into done/.
+ * The workers and the coordinator write heartbeats every 'distributed.heartbeatMs' (default 1000);
+ * a task claimed by a worker whose heartbeat has not changed for 'distributed.workerTimeoutMs'
+ * (default 10000) is put back in todo/, for another worker. When all the tasks are done,
+ * the coordinator concatenates the results in the order of the tasks, i.e. of the query file,
+ * into the res file. <p>
+ * Spool directory: 'distributed.spool' (default &lt;res-file&gt;.spool), emptied by the coordinator
+ * at the start; on a file system shared by all the machines, for renames to be atomic. <p>
+ *  READY: number of queries, written once the tasks are in todo/; <p>
+ *  todo/task-N: "from TAB to", the positions of its queries in the query file; <p>
+ *  claimed/task-N.worker: claimed by that worker; <p>
+ *  done/task-N.res: the result; failed/task-N: the error, that stops the run; <p>
+ *  workers/worker, coordinator: heartbeats, counters compared on the reader's own clock; <p>
+ *  DONE: written after the res file; the workers exit on it. <p>
+ * With 'distributed.workers' (default 0) &gt; 0, the coordinator also launches that many local
+ * worker JVMs, logging in logs/ of the spool; the run fails if all of them exit before
+ * the tasks are done. Every process must have the same properties file (and query file).
+ * A worker processes its queries one by one, with the deadline, gate and replay settings;
+ * numThreads, pipeline, secondPass.batchSize and checkpointing are not applied, and
+ * sweep and the expand mode are not supported.
+ * @author dwaipayan
+ */
+public class DistributedRun {
+
+    static final Charset    UTF8 = Charset.forName("UTF-8");
+
+    RelevanceBasedLanguageModel rblm;
+    String          propPath;       // path of the properties file, for launching the workers
+    File            spool;          // the spool directory
+    File            todoDir, claimedDir, doneDir, failedDir, workersDir, logsDir;
+    int             taskSize;       // number of queries in a task
+    long            heartbeatMs;    // interval of the heartbeats, and of polling the spool
+    long            workerTimeoutMs;    // a process whose heartbeat has not changed for that long is dead
+    int             numLocalWorkers;    // worker JVMs launched by the coordinator
+
+    /**
+     * @param propPath Path of the properties file of the run
+     * @param worker true, for a worker; false, for the coordinator
+     * @throws Exception
+     */
+    public DistributedRun(String propPath, boolean worker) throws Exception {
+
+        this.propPath = propPath;
+        Properties prop = new Properties();
+        try (FileReader fr = new FileReader(propPath)) {
+            prop.load(fr);
+        }
+        rblm = new RelevanceBasedLanguageModel(prop,
+            new IndexRegistry(false, MemoryBudget.fromProperties(prop), prop.getProperty("docids.dir")), worker);
+        if(null == rblm.queryPath)
+            throw new IllegalArgumentException("queryPath is needed in a distributed run");
+        if(rblm.sweep || "expand".equals(rblm.expansionMode))
+            throw new IllegalArgumentException("sweep and the expand mode are not supported in a distributed run");
+
+        spool = new File(prop.getProperty("distributed.spool", rblm.resPath + ".spool"));
+        todoDir = new File(spool, "todo");
+        claimedDir = new File(spool, "claimed");
+        doneDir = new File(spool, "done");
+        failedDir = new File(spool, "failed");
+        workersDir = new File(spool, "workers");
+        logsDir = new File(spool, "logs");
+        taskSize = Integer.parseInt(prop.getProperty("distributed.taskSize", "10"));
+        heartbeatMs = Long.parseLong(prop.getProperty("distributed.heartbeatMs", "1000"));
+        workerTimeoutMs = Long.parseLong(prop.getProperty("distributed.workerTimeoutMs", "10000"));
+        numLocalWorkers = Integer.parseInt(prop.getProperty("distributed.workers", "0"));
+        if(taskSize < 1 || heartbeatMs < 1 || workerTimeoutMs <= heartbeatMs)
+            throw new IllegalArgumentException("distributed.taskSize, heartbeatMs must be positive; "
+                + "workerTimeoutMs larger than heartbeatMs");
+    }
+
+    /**
+     * Runs the coordinator: makes the tasks, watches the workers, and writes the res file.
+     * @return true, if all the queries are done
+     * @throws Exception
+     */
+    public boolean coordinate() throws Exception {
+
+        List<TRECQuery> queries = TopicReader.readAll(rblm.queryPath, rblm.queryFormat);
+        String[] existing = spool.list();
+        if(null != existing && existing.length > 0 && !new File(spool, "READY").exists())
+            throw new IOException(spool+" is not empty, and not a spool directory; not emptied");
+        deleteRecursively(spool);
+        for (File dir : Arrays.asList(todoDir, claimedDir, doneDir, failedDir, workersDir, logsDir))
+            if(!dir.mkdirs())
+                throw new IOException("Cannot create "+dir);
+
+        List<String> tasks = new ArrayList<>();
+        for (int from = 0; from < queries.size(); from += taskSize) {
+            String task = String.format("task-%06d", tasks.size());
+            writeAtomically(new File(todoDir, task), from+"\t"+Math.min(from + taskSize, queries.size()));
+            tasks.add(task);
+        }
+        writeAtomically(new File(spool, "READY"), ""+queries.size());
+        System.out.println("Distributed run: "+queries.size()+" queries in "+tasks.size()+" tasks of "+taskSize
+            + ", spool "+spool);
+
+        List<Process> processes = launchWorkers();
+        Heartbeat heartbeat = new Heartbeat(new File(spool, "coordinator"));
+        heartbeat.start();
+
+        HashMap<String, long[]> seen = new HashMap<>();     // of each worker: last heartbeat, and when it changed
+        int numDone = 0, numReassigned = 0;
+        boolean ok = false;
+        try {
+            while(true) {
+                String failed = null;
+                for (String task : failedDir.list())
+                    if(!task.endsWith(".tmp"))
+                        failed = task;
+                if(null != failed) {
+                    System.err.println("Distributed run: "+failed+" failed: "
+                        + new String(Files.readAllBytes(new File(failedDir, failed).toPath()), UTF8));
+                    break;
+                }
+
+                long now = System.currentTimeMillis();
+                for (String worker : workersDir.list()) {
+                    if(worker.endsWith(".tmp"))
+                        continue;
+                    long counter = readCounter(new File(workersDir, worker));
+                    long[] last = seen.get(worker);
+                    if(null == last || last[0] != counter)
+                        seen.put(worker, new long[] {counter, now});
+                }
+
+                // the claims of the dead workers are put back
+                for (String claim : claimedDir.list()) {
+                    String task = claim.substring(0, claim.indexOf('.'));
+                    String worker = claim.substring(claim.indexOf('.') + 1);
+                    if(new File(doneDir, task+".res").exists())
+                        continue;       // done; the worker removes the claim
+                    long[] last = seen.get(worker);
+                    if(null == last) {
+                        seen.put(worker, last = new long[] {-1, now});  // claimed before its first heartbeat
+                    }
+                    if(now - last[1] > workerTimeoutMs) {
+                        try {
+                            Files.move(new File(claimedDir, claim).toPath(), new File(todoDir, task).toPath(),
+                                StandardCopyOption.ATOMIC_MOVE);
+                            numReassigned++;
+                            System.err.println("Distributed run: worker "+worker+" is not responding; "
+                                + task+" is reassigned");
+                        }
+                        catch (NoSuchFileException ex) {
+                            // completed meanwhile
+                        }
+                    }
+                }
+
+                int done = 0;
+                for (String result : doneDir.list())
+                    if(result.endsWith(".res"))     // else, being written
+                        done++;
+                if(done != numDone) {
+                    numDone = done;
+                    int alive = 0;
+                    for (long[] last : seen.values())
+                        if(now - last[1] <= workerTimeoutMs)
+                            alive++;
+                    System.out.println(String.format("Distributed run: %d of %d tasks done; %d workers alive, %d tasks reassigned",
+                        numDone, tasks.size(), alive, numReassigned));
+                }
+                if(numDone == tasks.size()) {
+                    ok = true;
+                    break;
+                }
+
+                if(!processes.isEmpty() && !anyAlive(processes)) {
+                    System.err.println("Distributed run: all the "+processes.size()+" local workers exited; see "+logsDir);
+                    break;
+                }
+                Thread.sleep(heartbeatMs);
+            }
+
+            if(ok) {
+                merge(tasks);
+                System.out.println("Distributed run: "+queries.size()+" queries done, "+numReassigned
+                    + " tasks reassigned; result in "+rblm.resPath);
+            }
+        }
+        finally {
+            writeAtomically(new File(spool, "DONE"), ok ? "ok" : "failed");
+            heartbeat.interrupt();
+            for (Process process : processes) {
+                if(!ok)
+                    process.destroy();
+                process.waitFor();
+            }
+            rblm.close();
+        }
+        return ok;
+    } // ends coordinate()
+
+    /**
+     * Concatenates the results of the tasks, in their order, into the res file (gzipped, if res.gzip).
+     */
+    private void merge(List<String> tasks) throws IOException {
+
+        File tmp = new File(rblm.resPath + ".tmp");
+        try (OutputStream out = rblm.gzipRes ? new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16)
+                : new FileOutputStream(tmp)) {
+            for (String task : tasks)
+                Files.copy(new File(doneDir, task+".res").toPath(), out);
+        }
+        Files.move(tmp.toPath(), new File(rblm.resPath).toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Launches the local worker JVMs, with the class path and the JVM options of this one.
+     */
+    private List<Process> launchWorkers() throws IOException {
+
+        List<Process> processes = new ArrayList<>();
+        for (int i = 0; i < numLocalWorkers; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(RelevanceBasedLanguageModel.class.getName());
+            command.add("-worker");
+            command.add(propPath);
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(new File(logsDir, "worker-"+i+".log"));
+            processes.add(builder.start());
+        }
+        if(numLocalWorkers > 0)
+            System.out.println("Distributed run: launched "+numLocalWorkers+" local workers");
+        return processes;
+    }
+
+    private static boolean anyAlive(List<Process> processes) {
+
+        for (Process process : processes) {
+            try {
+                process.exitValue();
+            }
+            catch (IllegalThreadStateException ex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs a worker: claims and retrieves the tasks, till the coordinator writes DONE
+     * or stops responding.
+     * @return Number of tasks done by this worker
+     * @throws Exception
+     */
+    public int work() throws Exception {
+
+        String workerId = ManagementFactory.getRuntimeMXBean().getName();   // pid@host
+        int at = workerId.indexOf('@');
+        if(at > 0)
+            workerId = workerId.substring(at + 1) + "-" + workerId.substring(0, at);
+        workerId = workerId.replaceAll("[^A-Za-z0-9_-]", "_");
+
+        File ready = new File(spool, "READY");
+        System.out.println("Worker "+workerId+": waiting for the tasks in "+spool);
+        while(!ready.exists() || new File(spool, "DONE").exists())     // not yet, or still of a previous run
+            Thread.sleep(heartbeatMs);
+        List<TRECQuery> queries = TopicReader.readAll(rblm.queryPath, rblm.queryFormat);
+        int expected = Integer.parseInt(new String(Files.readAllBytes(ready.toPath()), UTF8).trim());
+        if(expected != queries.size())
+            throw new IOException("Worker "+workerId+": "+queries.size()+" queries in "+rblm.queryPath
+                + "; the coordinator has "+expected);
+        if("replay".equals(rblm.expansionMode))
+            rblm.expansionReader = new ExpansionFile.Reader(rblm.expansionPath);
+
+        Heartbeat heartbeat = new Heartbeat(new File(workersDir, workerId));
+        heartbeat.start();
+        File coordinator = new File(spool, "coordinator");
+        long[] last = {readCounter(coordinator), System.currentTimeMillis()};
+        int numTasks = 0;
+        try {
+            while(!new File(spool, "DONE").exists()) {
+                long counter = readCounter(coordinator);
+                long now = System.currentTimeMillis();
+                if(counter != last[0]) {
+                    last[0] = counter;
+                    last[1] = now;
+                }
+                else if(now - last[1] > workerTimeoutMs) {
+                    System.err.println("Worker "+workerId+": the coordinator is not responding; exiting");
+                    break;
+                }
+
+                String task = claim(workerId);
+                if(null == task) {
+                    Thread.sleep(heartbeatMs);
+                    continue;
+                }
+                File claimed = new File(claimedDir, task+"."+workerId);
+                try {
+                    String[] range = new String(Files.readAllBytes(claimed.toPath()), UTF8).trim().split("\t");
+                    StringBuilder result = new StringBuilder();
+                    for (int seq = Integer.parseInt(range[0]); seq < Integer.parseInt(range[1]); seq++) {
+                        TRECQuery query = queries.get(seq);
+                        result.append(rblm.retrieveSingleQuery(query, rblm.trecQueryparser.getAnalyzedQuery(query), rblm.rlm));
+                    }
+                    File tmp = new File(doneDir, task+"."+workerId+".tmp");
+                    Files.write(tmp.toPath(), result.toString().getBytes(UTF8));
+                    // a reassigned task may be done twice, with the same result
+                    Files.move(tmp.toPath(), new File(doneDir, task+".res").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    numTasks++;
+                }
+                catch (Exception ex) {
+                    System.err.println("Worker "+workerId+": "+task+" failed: "+ex);
+                    writeAtomically(new File(failedDir, task), workerId+": "+ex);
+                }
+                Files.deleteIfExists(claimed.toPath());
+            }
+        }
+        finally {
+            heartbeat.interrupt();
+            if(null != rblm.expansionReader)
+                rblm.expansionReader.close();
+            rblm.close();
+        }
+        System.out.println("Worker "+workerId+": "+numTasks+" tasks done");
+        return numTasks;
+    } // ends work()
+
+    /**
+     * Claims the first task in todo/.
+     * @return The task; null, if there is none to be claimed
+     */
+    private String claim(String workerId) throws IOException {
+
+        String[] todo = todoDir.list();
+        if(null == todo)
+            return null;
+        Arrays.sort(todo);
+        for (String task : todo) {
+            if(task.endsWith(".tmp"))
+                continue;
+            try {
+                Files.move(new File(todoDir, task).toPath(), new File(claimedDir, task+"."+workerId).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+                return task;
+            }
+            catch (NoSuchFileException ex) {
+                // claimed by another worker
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the heartbeat counter of a process into a file, every 'heartbeatMs'.
+     */
+    class Heartbeat extends Thread {
+
+        File            file;
+
+        Heartbeat(File file) {
+            this.file = file;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (long counter = 0; ; counter++) {
+                    writeAtomically(file, ""+counter);
+                    Thread.sleep(heartbeatMs);
+                }
+            }
+            catch (InterruptedException ex) {
+                // stopped
+            }
+            catch (IOException ex) {
+                System.err.println("Heartbeat "+file+" stopped: "+ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the heartbeat counter in the file; -1, if there is none (yet).
+     */
+    private static long readCounter(File file) {
+
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(file.toPath()), UTF8).trim());
+        }
+        catch (IOException | NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the file through a temporary one, so that it is never seen partially written.
+     */
+    private static void writeAtomically(File file, String content) throws IOException {
+
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), content.getBytes(UTF8));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+
+        File[] children = file.listFiles();
+        if(null != children)
+            for (File child : children)
+                deleteRecursively(child);
+        Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The expansion terms of the queries, saved by the 'expand' mode and read back
+ * by the 'replay' mode, so that the re-retrieval can be rerun (e.g. with another
+ * similarity or numHits) without the initial retrieval, the feedback and RM. <p>
+ * Binary, big-endian: <p>
+ *  header: MAGIC, VERSION, description (of the run that saved it); <p>
+ *  one record per query: qid, number of terms, and for each term: the term,
+ *      P(w|R), the weight in the expanded query; <p>
+ *  trailer: number of queries, (qid, offset of its record) for each query,
+ *      offset of the trailer, MAGIC. <p>
+ * The strings are written as a short length followed by the UTF-8 bytes.
+ * The reader memory-maps the file and looks the records up by qid, reading only the
+ * records asked for; the file is limited to 2GB.
+ * @author dwaipayan
+ */
+public class ExpansionFile {
+
+    static final int        MAGIC = 0x524d3358;     // "RM3X"
+    static final int        VERSION = 1;
+    static final Charset    UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes the expansion terms of the queries, in any order; thread-safe.
+     */
+    public static class Writer implements Closeable {
+
+        String          path;
+        DataOutputStream out;       // out.size(): the offset of the next record
+        LinkedHashMap<String, Long> index = new LinkedHashMap<>();  // offset of the record of each qid
+
+        /**
+         * @param path Path of the file to be written; overwritten if it exists
+         * @param description Description of the run, kept in the header
+         * @throws IOException
+         */
+        public Writer(String path, String description) throws IOException {
+
+            this.path = path;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(description);
+        }
+
+        /**
+         * Appends the expansion terms of a query.
+         * @param qid The query id
+         * @param terms The expansion terms (the expanded query), in the order to be kept
+         * @throws IOException
+         */
+        public synchronized void write(String qid, Map<String, WordProbability> terms) throws IOException {
+
+            if(index.containsKey(qid))
+                throw new IOException("Duplicate qid in "+path+": "+qid);
+            if(out.size() == Integer.MAX_VALUE)     // size() stops counting there
+                throw new IOException(path+" is larger than 2GB");
+            index.put(qid, (long) out.size());
+            writeString(qid);
+            out.writeInt(terms.size());
+            for (WordProbability wp : terms.values()) {
+                writeString(wp.w);
+                out.writeFloat(wp.p_w_given_R);
+                out.writeFloat(wp.expansionWeight);
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+
+            byte[] bytes = s.getBytes(UTF8);
+            if(bytes.length > Short.MAX_VALUE)
+                throw new IOException("String too long for "+path);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * Writes the index of the qids, and closes the file.
+         * @throws IOException
+         */
+        @Override
+        public synchronized void close() throws IOException {
+
+            if(null == out)
+                return;
+            long trailer = out.size();
+            out.writeInt(index.size());
+            for (Map.Entry<String, Long> entry : index.entrySet()) {
+                writeString(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeLong(trailer);
+            out.writeInt(MAGIC);
+            out.close();
+            out = null;
+            System.out.println("Expansion terms of "+index.size()+" queries saved in "+path);
+        }
+    }
+
+    /**
+     * Reads the expansion terms of the queries by qid, from the memory-mapped file; thread-safe.
+     */
+    public static class Reader implements Closeable {
+
+        String          path;
+        RandomAccessFile raf;
+        MappedByteBuffer buffer;
+        String          description;
+        HashMap<String, Integer> index = new HashMap<>();   // offset of the record of each qid
+
+        public Reader(String path) throws IOException {
+
+            this.path = path;
+            raf = new RandomAccessFile(path, "r");
+            long length = raf.length();
+            if(length > Integer.MAX_VALUE)
+                throw new IOException(path+" is larger than 2GB");
+            if(length < 20)
+                throw new IOException(path+": not an expansion file");
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+            if(buffer.getInt(0) != MAGIC || buffer.getInt((int)length - 4) != MAGIC)
+                throw new IOException(path+": not an expansion file, or incompletely written");
+            if(buffer.getInt(4) != VERSION)
+                throw new IOException(path+": unknown version "+buffer.getInt(4));
+            int[] pos = {8};
+            description = readString(buffer, pos);
+
+            pos[0] = (int) buffer.getLong((int)length - 12);
+            int count = buffer.getInt(pos[0]);
+            pos[0] += 4;
+            for (int i = 0; i < count; i++) {
+                String qid = readString(buffer, pos);
+                index.put(qid, (int) buffer.getLong(pos[0]));
+                pos[0] += 8;
+            }
+        }
+
+        /**
+         * Returns the expansion terms of a query.
+         * @param qid The query id
+         * @return The expansion terms keyed by the term, in the order saved; null, if the query is not in the file
+         */
+        public HashMap<String, WordProbability> get(String qid) {
+
+            Integer offset = index.get(qid);
+            if(null == offset)
+                return null;
+            int[] pos = {offset};
+            readString(buffer, pos);    // qid
+            int numTerms = buffer.getInt(pos[0]);
+            pos[0] += 4;
+            HashMap<String, WordProbability> terms = new LinkedHashMap<>();
+            for (int i = 0; i < numTerms; i++) {
+                String w = readString(buffer, pos);
+                float p = buffer.getFloat(pos[0]);
+                float weight = buffer.getFloat(pos[0] + 4);
+                pos[0] += 8;
+                terms.put(w, new WordProbability(w, p, weight));
+            }
+            return terms;
+        }
+
+        /**
+         * Returns the qids in the file.
+         */
+        public List<String> getQids() {
+            return new ArrayList<>(index.keySet());
+        }
+
+        /**
+         * Returns the description of the run that saved the file.
+         */
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * Reads a string at pos[0], using absolute gets only, so that
+         * the buffer can be read by many threads at once.
+         */
+        private static String readString(MappedByteBuffer buffer, int[] pos) {
+
+            int length = buffer.getShort(pos[0]);
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++)
+                bytes[i] = buffer.get(pos[0] + 2 + i);
+            pos[0] += 2 + length;
+            return new String(bytes, UTF8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+}
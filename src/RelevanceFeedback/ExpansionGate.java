@@ -0,0 +1,156 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import common.TRECQuery;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Decides, after the initial retrieval, whether a query is to be expanded at all;
+ * a query that is not expanded gets its first-pass ranking, saving the term vector
+ * reading, RM1 and the re-retrieval. The decision uses the statistics the first pass
+ * already has: <p>
+ *  nqc: standard deviation of the top 'gate.k' scores, normalized by their mean
+ *      (as in NQC); a flat score distribution gives little evidence that the top
+ *      documents are relevant, and the feedback is likely to drift; <p>
+ *  avgIDF: mean idf of the query terms; a very specific query is already precise. <p>
+ * A query is expanded if it has at least 'gate.minHits' hits, nqc &gt;= 'gate.minNQC'
+ * and avgIDF &lt;= 'gate.maxAvgIDF'. The statistics of each query are logged, to be
+ * used for setting the thresholds. <p>
+ * A query that is not expanded is tagged in the run column of the res file as runName-gate-firstpass.
+ * @author dwaipayan
+ */
+public class ExpansionGate {
+
+    RelevanceBasedLanguageModel rblm;
+
+    int             k;              // number of top scores for nqc
+    int             minHits;        // queries with fewer hits are not expanded
+    double          minNQC;         // queries with a lower nqc are not expanded
+    double          maxAvgIDF;      // queries with a higher mean idf are not expanded
+
+    AtomicInteger   numExpanded = new AtomicInteger();
+    AtomicInteger   numSkipped = new AtomicInteger();
+    AtomicInteger   numFewHits = new AtomicInteger();
+    AtomicInteger   numLowNQC = new AtomicInteger();
+    AtomicInteger   numHighIDF = new AtomicInteger();
+    /**
+     * Time of the feedback, the expansion and the re-retrieval of the expanded queries;
+     * the mean of it is the estimated time saved by each query not expanded.
+     */
+    AtomicLong      expansionNanos = new AtomicLong();
+
+    public ExpansionGate(RelevanceBasedLanguageModel rblm) {
+
+        this.rblm = rblm;
+        k = Integer.parseInt(rblm.prop.getProperty("gate.k", ""+rblm.numFeedbackDocs));
+        minHits = Integer.parseInt(rblm.prop.getProperty("gate.minHits", "1"));
+        minNQC = Double.parseDouble(rblm.prop.getProperty("gate.minNQC", "0"));
+        maxAvgIDF = Double.parseDouble(rblm.prop.getProperty("gate.maxAvgIDF", "Infinity"));
+    }
+
+    /**
+     * Decides whether the query is to be expanded.
+     * @param query The query
+     * @param analyzedQuery The terms of the analyzed query
+     * @param topDocs The initially retrieved documents
+     * @return true, if the query is to be expanded
+     * @throws IOException
+     */
+    public boolean shouldExpand(TRECQuery query, String[] analyzedQuery, TopDocs topDocs) throws IOException {
+
+        ScoreDoc[] hits = topDocs.scoreDocs;
+        double nqc = nqc(hits);
+        double avgIDF = avgIDF(analyzedQuery);
+
+        String decision;
+        if(hits.length < minHits) {
+            numFewHits.incrementAndGet();
+            decision = "first-pass (hits: "+hits.length+")";
+        }
+        else if(nqc < minNQC) {
+            numLowNQC.incrementAndGet();
+            decision = "first-pass (nqc)";
+        }
+        else if(avgIDF > maxAvgIDF) {
+            numHighIDF.incrementAndGet();
+            decision = "first-pass (avgIDF)";
+        }
+        else
+            decision = "expand";
+        System.out.println(String.format("%s: gate: nqc %.4f, avgIDF %.3f: %s", query.qid, nqc, avgIDF, decision));
+
+        if(decision.equals("expand"))
+            return true;
+        numSkipped.incrementAndGet();
+        return false;
+    } // ends shouldExpand()
+
+    /**
+     * Records the time taken to expand and re-retrieve a query that the gate let through.
+     * @param nanos The time, from the end of the initial retrieval
+     */
+    public void expanded(long nanos) {
+        numExpanded.incrementAndGet();
+        expansionNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Standard deviation of the top-k scores, normalized by their mean; 0 for less than two scores.
+     */
+    double nqc(ScoreDoc[] hits) {
+
+        int n = Math.min(k, hits.length);
+        if(n < 2)
+            return 0;
+        double mean = 0;
+        for (int i = 0; i < n; i++)
+            mean += hits[i].score;
+        mean /= n;
+        if(0 == mean)
+            return 0;
+        double var = 0;
+        for (int i = 0; i < n; i++)
+            var += (hits[i].score - mean) * (hits[i].score - mean);
+        return Math.sqrt(var / n) / Math.abs(mean);
+    }
+
+    /**
+     * Mean idf of the query terms, in the field searched.
+     */
+    double avgIDF(String[] analyzedQuery) throws IOException {
+
+        double sum = 0;
+        int n = 0;
+        for (String term : analyzedQuery) {
+            if(term.isEmpty())
+                continue;
+            sum += rblm.sharedIndex.getTermStat(rblm.fieldToSearch, term).getIDF();
+            n++;
+        }
+        return (n > 0) ? sum / n : 0;
+    }
+
+    /**
+     * Prints the decisions, and the estimated time saved.
+     */
+    public void report() {
+
+        int expanded = numExpanded.get();
+        int skipped = numSkipped.get();
+        double meanMs = (expanded > 0) ? expansionNanos.get() / 1e6 / expanded : 0;
+        System.out.println(String.format("Expansion gate: %d expanded, %d first-pass "
+            + "(too few hits: %d, low nqc: %d, high avgIDF: %d)",
+            expanded, skipped, numFewHits.get(), numLowNQC.get(), numHighIDF.get()));
+        System.out.println(String.format("Expansion took %.3f ms per query; estimated time saved: %.1f ms",
+            meanMs, meanMs * skipped));
+    }
+}
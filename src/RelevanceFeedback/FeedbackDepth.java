@@ -0,0 +1,101 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * Picks the number of feedback documents of each query from its first-pass scores,
+ * between 'feedback.adaptive.minDocs' and numFeedbackDocs (the maximum): <p>
+ *  gap: cut at the first drop between two consecutive scores that is at least
+ *      'feedback.adaptive.threshold' (default 0.3) of the score range of the top numFeedbackDocs; <p>
+ *  mass: the fewest top documents holding 'feedback.adaptive.threshold' (default 0.9) of the
+ *      mass of exp(score) over the top numFeedbackDocs, i.e. of P(Q|D) for the LM similarities,
+ *      whose scores are log-probabilities up to a constant. <p>
+ * Shared by all the RLMs of a run (copied by reference), counting the depths picked.
+ * @author dwaipayan
+ */
+public class FeedbackDepth {
+
+    String          mode;           // gap / mass
+    int             minDocs;        // least number of feedback documents
+    double          threshold;      // see above
+
+    AtomicLong      numQueries = new AtomicLong();
+    AtomicLong      sumDepth = new AtomicLong();    // number of feedback documents picked, summed over the queries
+    AtomicLong      sumMaxDepth = new AtomicLong(); // number of feedback documents available, summed over the queries
+
+    public FeedbackDepth(Properties prop) {
+
+        mode = prop.getProperty("feedback.adaptive");
+        if(!mode.equals("gap") && !mode.equals("mass"))
+            throw new IllegalArgumentException("feedback.adaptive: gap or mass expected; found "+mode);
+        minDocs = Integer.parseInt(prop.getProperty("feedback.adaptive.minDocs", "1"));
+        threshold = Double.parseDouble(prop.getProperty("feedback.adaptive.threshold", mode.equals("gap") ? "0.3" : "0.9"));
+    }
+
+    /**
+     * Returns the number of feedback documents for a query.
+     * @param hits The initially retrieved documents, in decreasing order of score
+     * @param maxDocs The maximum number of feedback documents
+     * @return The number of top documents of 'hits' to be used for feedback
+     */
+    public int depth(ScoreDoc[] hits, int maxDocs) {
+
+        int max = Math.min(maxDocs, hits.length);
+        int min = Math.min(minDocs, max);
+        int depth = max;
+
+        if(max > min) {
+            if(mode.equals("gap")) {
+                double range = hits[0].score - hits[max-1].score;
+                if(range > 0) {
+                    for (int i = min; i < max; i++) {
+                        if(hits[i-1].score - hits[i].score >= threshold * range) {
+                            depth = i;
+                            break;
+                        }
+                    }
+                }
+            }
+            else {  // mass
+                double total = 0;
+                for (int i = 0; i < max; i++)
+                    total += Math.exp(hits[i].score - hits[0].score);
+                double mass = 0;
+                for (int i = 0; i < max; i++) {
+                    mass += Math.exp(hits[i].score - hits[0].score);
+                    if(i+1 >= min && mass >= threshold * total) {
+                        depth = i+1;
+                        break;
+                    }
+                }
+            }
+        }
+
+        numQueries.incrementAndGet();
+        sumDepth.addAndGet(depth);
+        sumMaxDepth.addAndGet(max);
+        return depth;
+    } // ends depth()
+
+    /**
+     * Prints the mean number of feedback documents picked.
+     */
+    public void report() {
+
+        long n = numQueries.get();
+        if(0 == n)
+            return;
+        System.out.println(String.format("Adaptive feedback depth (%s, threshold %s): %.2f feedback docs on average, "
+            + "of at most %.2f; %.0f%% of the feedback documents read",
+            mode, threshold, (double)sumDepth.get() / n, (double)sumMaxDepth.get() / n,
+            100.0 * sumDepth.get() / Math.max(1, sumMaxDepth.get())));
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import common.BoundedExecutor;
+import common.IndexRegistry;
+import common.MemoryBudget;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the properties files listed in a job file, in one JVM. <p>
+ * The job file has one path of a properties file per line; empty lines and
+ * lines starting with '#' are ignored. The jobs pointing to the same indexPath
+ * share the index reader and the collection statistics of the terms, and the jobs
+ * with the same stopFilePath share the analyzer (see {@link IndexRegistry}).
+ * 'numConcurrentJobs' jobs are run concurrently; a failed job does not stop the others. <p>
+ * The job file may also have the lines:
+ * <pre>
+ * index &lt;name&gt; &lt;path&gt;     names an index (or comma separated shards), for indexPath=&lt;name&gt; in the jobs
+ * cache.budgetMB &lt;mb&gt;        memory shared by the caches of all the indexes (see {@link MemoryBudget})
+ * docids.dir [&lt;path&gt;]       directory of the docid side files of all the indexes; none, without the path
+ *                          (see {@link common.DocIdLookup})
+ * </pre>
+ * @author dwaipayan
+ */
+public class JobRunner {
+
+    List<String>    jobs;               // paths of the properties files
+    int             numConcurrentJobs;  // number of jobs to be run concurrently
+    IndexRegistry   registry;           // shared by all the jobs
+
+    public JobRunner(String jobFilePath, int numConcurrentJobs) throws IOException {
+
+        this.numConcurrentJobs = Math.max(1, numConcurrentJobs);
+        jobs = new ArrayList<>();
+        HashMap<String, String> indexes = new LinkedHashMap<>();
+        MemoryBudget budget = MemoryBudget.defaultBudget();
+        String docIdDir = null;     // beside each index
+        try (BufferedReader br = new BufferedReader(new FileReader(jobFilePath))) {
+            String line;
+            while(null != (line = br.readLine())) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] tokens = line.split("\\s+");
+                if("index".equals(tokens[0])) {
+                    if(3 != tokens.length)
+                        throw new IOException("Expected 'index <name> <path>' in "+jobFilePath+": "+line);
+                    indexes.put(tokens[1], tokens[2]);
+                }
+                else if("cache.budgetMB".equals(tokens[0])) {
+                    if(2 != tokens.length)
+                        throw new IOException("Expected 'cache.budgetMB <mb>' in "+jobFilePath+": "+line);
+                    budget = new MemoryBudget(Long.parseLong(tokens[1]) << 20);
+                }
+                else if("docids.dir".equals(tokens[0])) {
+                    if(2 < tokens.length)
+                        throw new IOException("Expected 'docids.dir [<path>]' in "+jobFilePath+": "+line);
+                    docIdDir = (2 == tokens.length) ? tokens[1] : "";
+                }
+                else
+                    jobs.add(line);
+            }
+        }
+        // the indexes are kept open till all the jobs are done
+        registry = new IndexRegistry(true, budget, docIdDir);
+        for (Map.Entry<String, String> index : indexes.entrySet())
+            registry.define(index.getKey(), index.getValue());
+    }
+
+    /**
+     * Runs one job.
+     * @param propPath Path of the properties file
+     * @throws Exception
+     */
+    private void runJob(String propPath) throws Exception {
+
+        Properties prop = new Properties();
+        try (FileReader fr = new FileReader(propPath)) {
+            prop.load(fr);
+        }
+        RelevanceBasedLanguageModel rblm = new RelevanceBasedLanguageModel(prop, registry);
+        try {
+            rblm.retrieveAll();
+        }
+        finally {
+            rblm.close();
+        }
+    }
+
+    /**
+     * Runs all the jobs, and prints the status of each of them.
+     * @return Number of failed jobs
+     * @throws Exception
+     */
+    public int run() throws Exception {
+
+        System.out.println("Running "+jobs.size()+" jobs, "+numConcurrentJobs+" at a time");
+        // all the jobs are queued: a long one does not hold back the others
+        BoundedExecutor<String> executor = new BoundedExecutor<>(numConcurrentJobs, Math.max(1, jobs.size()));
+        final AtomicInteger failed = new AtomicInteger();
+        final StringBuilder report = new StringBuilder();
+        try {
+            for (int i = 0; i < jobs.size(); i++) {
+                final String job = jobs.get(i);
+                final int jobNumber = i + 1;
+                executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        long start = System.currentTimeMillis();
+                        try {
+                            runJob(job);
+                        }
+                        catch (Exception ex) {
+                            failed.incrementAndGet();
+                            return String.format("Job %d: %s: FAILED: %s\n", jobNumber, job, ex);
+                        }
+                        return String.format("Job %d: %s: done in %.2fs\n", jobNumber, job,
+                            (System.currentTimeMillis() - start)/1000.0);
+                    }
+                }, new BoundedExecutor.Completion<String>() {
+                    @Override
+                    public void completed(String status) {
+                        report.append(status);
+                    }
+                });
+            }
+            executor.finish();
+        }
+        finally {
+            executor.close();
+        }
+        registry.report();
+        registry.close();
+
+        System.out.print(report);
+        System.out.println((jobs.size()-failed.get())+" of "+jobs.size()+" jobs done");
+
+        return failed.get();
+    } // ends run()
+}
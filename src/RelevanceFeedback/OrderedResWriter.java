@@ -0,0 +1,94 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import common.TrecRunWriter;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Writes the results of the queries in the order of the query file,
+ * even when they are completed in some other order.
+ * A result arriving before the ones preceding it is held till those are written.
+ * The res file is kept open (a TrecRunWriter) till close(). With a CheckpointJournal,
+ * each written query is flushed to the file and recorded as completed.
+ * @author dwaipayan
+ */
+public class OrderedResWriter {
+
+    TrecRunWriter   runWriter;      // the res file
+    /**
+     * Results waiting for the preceding ones, keyed by the position of the query in the query file.
+     */
+    HashMap<Integer, StringBuilder> pending;
+    HashMap<Integer, String> pendingQids;   // qids of the held results
+    int             nextSeq;        // position of the next query to be written
+    CheckpointJournal journal;      // null, if not checkpointed
+
+    /**
+     * @param runWriter The opened res file; closed by close()
+     * @param journal The journal of the res file; null, if not checkpointed.
+     * A gzipped res file can not be checkpointed.
+     */
+    public OrderedResWriter(TrecRunWriter runWriter, CheckpointJournal journal) {
+        if(null != journal && runWriter.isGzipped())
+            throw new IllegalArgumentException("A gzipped res file can not be checkpointed");
+        this.runWriter = runWriter;
+        this.journal = journal;
+        pending = new HashMap<>();
+        pendingQids = new HashMap<>();
+        nextSeq = 0;
+    }
+
+    /**
+     * Writes the result of the query at position 'seq' of the query file,
+     * along with all the held results that follow it.
+     * @param seq Position of the query in the query file
+     * @param qid Id of the query
+     * @param resBuffer Result of the query in TREC-res format
+     * @return Number of results written by this call
+     * @throws IOException
+     */
+    public synchronized int write(int seq, String qid, StringBuilder resBuffer) throws IOException {
+
+        pending.put(seq, resBuffer);
+        pendingQids.put(seq, qid);
+        int written = 0;
+        StringBuilder next;
+        while(null != (next = pending.remove(nextSeq))) {
+            runWriter.write(next);
+            String nextQid = pendingQids.remove(nextSeq);
+            if(null != journal) {
+                runWriter.flush();
+                journal.record(nextQid, runWriter.position());
+            }
+            nextSeq++;
+            written++;
+        }
+        return written;
+    }
+
+    /**
+     * Returns the number of results held, waiting for the preceding ones.
+     * @return Number of held results
+     */
+    public synchronized int getPendingCount() {return pending.size();}
+
+    /**
+     * Closes the res file and the journal, if any; the held results (if any) are not written.
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        try {
+            runWriter.close();
+        }
+        finally {
+            if(null != journal)
+                journal.close();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import common.BoundedExecutor;
+import common.DocumentVector;
+import common.PerTermStat;
+import common.TRECQuery;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Runs a grid of parameter settings in one pass over the queries. <p>
+ * The values are taken as comma separated lists from the properties: <p>
+ *  sweep.numFeedbackDocs, sweep.numFeedbackTerms, sweep.queryMix, sweep.param1; <p>
+ * a parameter without a list keeps its single value from the usual property.
+ * The RM3 variants of 'rm3.idf' (which can also be a list) make one more dimension.
+ * For each query, the initial retrieval is done once per value of param1 (the
+ * similarity depends on it), and the document vectors and the collection
+ * statistics of the feedback terms are read from the index only once, for the
+ * largest number of feedback documents; all the grid points are derived from them.
+ * RM1 is computed once per number of feedback documents (and param1), and all
+ * the variants, numFeedbackTerms and queryMix values are derived from it.
+ * One res file is written per setting, named with the usual runName scheme.
+ * @author dwaipayan
+ */
+public class ParameterSweep {
+
+    RelevanceBasedLanguageModel rblm;
+
+    int[]           docsList;       // values of numFeedbackDocs, in non-increasing order
+    int[]           termsList;      // values of numFeedbackTerms
+    float[]         qmixList;       // values of rm3.queryMix
+    float[]         param1List;     // values of param1
+    IndexSearcher[] searchers;      // one for each value of param1
+
+    /**
+     * One setting of the grid.
+     */
+    static class SweepRun {
+        int             numFeedbackDocs;
+        int             numFeedbackTerms;
+        float           QMIX;
+        int             rm3_IDF;
+        float           param1;
+        String          runName;
+        String          resPath;
+        OrderedResWriter resWriter;     // set by the caller, before run()
+    }
+    List<SweepRun>  runs;
+
+    public ParameterSweep(RelevanceBasedLanguageModel rblm) throws IOException {
+
+        this.rblm = rblm;
+        Properties prop = rblm.prop;
+
+        docsList = parseInts(prop.getProperty("sweep.numFeedbackDocs", ""+rblm.numFeedbackDocs));
+        // from the largest depth, so that all the feedback documents are read at the first go
+        Arrays.sort(docsList);
+        for (int i = 0; i < docsList.length/2; i++) {
+            int t = docsList[i];
+            docsList[i] = docsList[docsList.length-1-i];
+            docsList[docsList.length-1-i] = t;
+        }
+        termsList = parseInts(prop.getProperty("sweep.numFeedbackTerms", ""+rblm.numFeedbackTerms));
+        qmixList = parseFloats(prop.getProperty("sweep.queryMix", ""+rblm.QMIX));
+        param1List = parseFloats(prop.getProperty("sweep.param1", ""+rblm.param1));
+
+        searchers = new IndexSearcher[param1List.length];
+        for (int p = 0; p < param1List.length; p++) {
+            searchers[p] = new IndexSearcher(rblm.indexReader, rblm.searchExecutor);
+            searchers[p].setSimilarity(RelevanceBasedLanguageModel.makeSimilarity(rblm.simFuncChoice, param1List[p], rblm.param2));
+        }
+
+        runs = new ArrayList<>();
+        HashSet<String> resPaths = new HashSet<>();
+        for (int p = 0; p < param1List.length; p++)
+            for (int numFeedbackDocs : docsList)
+                for (int numFeedbackTerms : termsList)
+                    for (float qmix : qmixList)
+                        for (int rm3_IDF : rblm.rm3_IDFs)
+                            runs.add(makeRun(p, numFeedbackDocs, numFeedbackTerms, qmix, rm3_IDF, resPaths));
+    }
+
+    /**
+     * Makes a setting of the grid, with the path of its res file.
+     */
+    private SweepRun makeRun(int p, int numFeedbackDocs, int numFeedbackTerms, float qmix, int rm3_IDF,
+        HashSet<String> resPaths) throws IOException {
+
+        SweepRun run = new SweepRun();
+        run.param1 = param1List[p];
+        run.numFeedbackDocs = numFeedbackDocs;
+        run.numFeedbackTerms = numFeedbackTerms;
+        run.QMIX = qmix;
+        run.rm3_IDF = rm3_IDF;
+        run.runName = rblm.makeRunName(searchers[p].getSimilarity(true), numFeedbackDocs, numFeedbackTerms, rm3_IDF, qmix);
+        String resPath = rblm.makeResPath(run.runName);
+        if(resPaths.contains(resPath)) {
+            // the name of the similarity does not have param1 in it
+            run.runName += "-param1-"+run.param1;
+            resPath = rblm.makeResPath(run.runName);
+        }
+        resPaths.add(resPath);
+        run.resPath = resPath;
+        System.out.println("Sweep: result will be stored in: "+resPath);
+
+        return run;
+    }
+
+    static int[] parseInts(String list) {
+        String[] tokens = list.split(",");
+        int[] values = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++)
+            values[i] = Integer.parseInt(tokens[i].trim());
+        return values;
+    }
+
+    static float[] parseFloats(String list) {
+        String[] tokens = list.split(",");
+        float[] values = new float[tokens.length];
+        for (int i = 0; i < tokens.length; i++)
+            values[i] = Float.parseFloat(tokens[i].trim());
+        return values;
+    }
+
+    /**
+     * Runs all the settings of the grid for all the queries;
+     * the queries are processed on 'numThreads' threads.
+     * @param feed The queries, in dispatch order
+     * @throws Exception
+     */
+    public void run(QueryFeed feed) throws Exception {
+
+        System.out.println("Sweeping "+runs.size()+" settings");
+        int numThreads = Math.max(1, rblm.numThreads);
+        BoundedExecutor<StringBuilder[]> executor = new BoundedExecutor<>(numThreads, 2*numThreads);
+        try {
+            while(feed.next()) {
+                final TRECQuery query = feed.query();
+                final int seq = feed.seq();
+                // the query parser is not thread-safe; parsing is done here, in the dispatching thread
+                final Query luceneQuery = rblm.trecQueryparser.getAnalyzedQuery(query);
+                executor.submit(new Callable<StringBuilder[]>() {
+                    @Override
+                    public StringBuilder[] call() throws Exception {
+                        return sweepSingleQuery(query, luceneQuery);
+                    }
+                }, new BoundedExecutor.Completion<StringBuilder[]>() {
+                    @Override
+                    public void completed(StringBuilder[] results) throws Exception {
+                        write(seq, query.qid, results);
+                    }
+                });
+            }
+            executor.finish();
+        }
+        finally {
+            executor.close();
+        }
+    } // ends run()
+
+    private void write(int seq, String qid, StringBuilder[] results) throws IOException {
+        for (int i = 0; i < runs.size(); i++)
+            runs.get(i).resWriter.write(seq, qid, results[i]);
+    }
+
+    /**
+     * Runs all the settings of the grid for one query.
+     * @param query The query
+     * @param luceneQuery The analyzed query
+     * @return The results for each setting, in the order of 'runs'
+     * @throws Exception
+     */
+    public StringBuilder[] sweepSingleQuery(TRECQuery query, Query luceneQuery) throws Exception {
+
+        StringBuilder[] results = new StringBuilder[runs.size()];
+        // read once from the index, shared by all the settings for this query
+        HashMap<Integer, DocumentVector> docVectorCache = new HashMap<>();
+        HashMap<String, PerTermStat> termStatCache = new HashMap<>();
+        String[] analyzedQuery = luceneQuery.toString(rblm.fieldToSearch).split(" ");
+
+        System.out.println(query.qid+": Initial query: " + luceneQuery.toString(rblm.fieldToSearch));
+        int runIndex = 0;
+        for (int p = 0; p < param1List.length; p++) {
+            TopDocs topDocs = searchers[p].search(luceneQuery, rblm.firstPassHits);
+
+            for (int numFeedbackDocs : docsList) {
+                RLM rlm = new RLM(rblm.rlm);
+                rlm.numFeedbackDocs = numFeedbackDocs;
+                rlm.mixingLambda = RelevanceBasedLanguageModel.getMixingLambda(param1List[p]);
+                rlm.setFeedbackStats(topDocs, analyzedQuery, docVectorCache, termStatCache);
+                HashMap<String, WordProbability> rm1 = rlm.RM1(query, topDocs);
+
+                for (int numFeedbackTerms : termsList) {
+                    for (float qmix : qmixList) {
+                        rlm.numFeedbackTerms = numFeedbackTerms;
+                        rlm.QMIX = qmix;
+                        for (int rm3_IDF : rblm.rm3_IDFs) {
+                            BooleanQuery booleanQuery = rblm.expandQuery(query, rm1, rlm, rm3_IDF);
+                            TopDocs reRetrieved = searchers[p].search(rblm.secondPassQuery(booleanQuery, topDocs), rblm.numHits);
+                            results[runIndex] = rblm.makeResult(query.qid, reRetrieved.scoreDocs, runs.get(runIndex).runName);
+                            runIndex++;
+                        }
+                    }
+                }
+            }
+        }
+
+        return results;
+    } // ends sweepSingleQuery()
+}
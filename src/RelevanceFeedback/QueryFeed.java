@@ -0,0 +1,100 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import common.TRECQuery;
+import common.TopicReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The queries to be processed, in dispatch order, each with its position ('seq')
+ * among the queries to be written. Either streamed from a TopicReader in the order
+ * of the file (the queries are not held in memory), or taken from a list in a
+ * scheduled order.
+ * @author dwaipayan
+ */
+public class QueryFeed {
+
+    TopicReader     reader;     // the streamed topic file; null, for a list
+    Set<String>     skip;       // qids to be skipped while streaming (e.g. completed earlier); may be null
+    List<TRECQuery> queries;    // the queries, in the order of the file; null, if streamed
+    List<Integer>   order;      // positions of 'queries' in dispatch order
+
+    int             dispatched; // number of queries given so far
+    int             skipped;    // number of queries skipped so far
+    int             seq;        // position of the current query
+    TRECQuery       query;      // the current query
+
+    /**
+     * Streams the queries from 'reader', leaving out the ones with qid in 'skip'.
+     */
+    public QueryFeed(TopicReader reader, Set<String> skip) {
+        this.reader = reader;
+        this.skip = skip;
+    }
+
+    /**
+     * Takes the queries from 'queries', in 'order'.
+     */
+    public QueryFeed(List<TRECQuery> queries, List<Integer> order) {
+        this.queries = queries;
+        this.order = order;
+    }
+
+    /**
+     * Moves to the next query.
+     * @return false, if there is no more query
+     */
+    public boolean next() {
+
+        if(null != queries) {
+            if(dispatched >= order.size())
+                return false;
+            seq = order.get(dispatched++);
+            query = queries.get(seq);
+            return true;
+        }
+        while(reader.hasNext()) {
+            TRECQuery q = reader.next();
+            if(null != skip && skip.contains(q.qid)) {
+                skipped++;
+                continue;
+            }
+            seq = dispatched++;
+            query = q;
+            return true;
+        }
+        return false;
+    }
+
+    /** Position of the current query among the queries to be written. */
+    public int seq() {return seq;}
+
+    /** The current query. */
+    public TRECQuery query() {return query;}
+
+    /**
+     * Returns whether the queries are given in the order of the file (seq() increasing).
+     * @return false, if scheduled in some other order
+     */
+    public boolean inFileOrder() {
+
+        if(null == order)
+            return true;
+        for (int i = 0; i < order.size(); i++)
+            if(order.get(i) != i)
+                return false;
+        return true;
+    }
+
+    public void close() throws IOException {
+        if(null != reader)
+            reader.close();
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import common.TRECQuery;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Processes the queries as a staged pipeline: <p>
+ *  initial retrieval -> feedback (term vector I/O) -> expansion (RM) -> re-retrieval -> writing. <p>
+ * Each stage has its own pool of threads, and the stages are connected with bounded queues,
+ * so that, e.g. the term vectors of query i+1 are read while the expansion terms of query i
+ * are computed, and the results are written asynchronously.
+ * The number of queries in the pipeline is bounded by 'pipeline.maxInFlight';
+ * the results are written in the order of the query file. The results held for the
+ * preceding ones are bounded by 'pipeline.maxPending' when the queries are dispatched in
+ * the order of the file; a scheduled (reordered) run holds up to all of its queries, which
+ * are in the memory already.
+ * @author dwaipayan
+ */
+public class QueryPipeline {
+
+    RelevanceBasedLanguageModel rblm;
+
+    int             queueSize;      // capacity of the queue between two stages
+    int             maxInFlight;    // maximum number of queries in the pipeline at any time
+    int             maxPending;     // maximum number of results held for the preceding ones (in file order)
+    List<Stage>     stages;
+    /**
+     * Permits for the queries in the pipeline; taken when a query is fed,
+     * released when the writer stage has taken its result (written, or held).
+     */
+    Semaphore       inFlight;
+    /**
+     * Permits for the results not yet written, in file order; taken when a query is fed,
+     * released when its result is written. Null, if the queries are not dispatched in the
+     * order of the file: the query written next may not be fed yet, and would never be.
+     */
+    Semaphore       reorderWindow;
+    OrderedResWriter resWriter;
+
+    /**
+     * Marks the end of the queries.
+     */
+    static final QueryJob POISON = new QueryJob(-1, null, null);
+
+    /**
+     * The first exception thrown by any stage; the pipeline is drained after it.
+     */
+    volatile Exception failure;
+
+    /**
+     * A query, with its state as it passes through the stages.
+     */
+    static class QueryJob {
+        int             seq;            // position of the query in the query file
+        TRECQuery       query;
+        Query           luceneQuery;
+        RLM             rlm;            // feedback state of this query
+        TopDocs         topDocs;
+        BooleanQuery    expandedQuery;
+        StringBuilder    resBuffer;      // set early, if the query is not to be expanded
+        long            expansionNanos; // time in the feedback, expansion and re-retrieval stages, for the expansion gate
+
+        QueryJob(int seq, TRECQuery query, Query luceneQuery) {
+            this.seq = seq;
+            this.query = query;
+            this.luceneQuery = luceneQuery;
+        }
+    }
+
+    /**
+     * A stage of the pipeline, run by 'numThreads' threads,
+     * taking the queries from 'in' and putting them in 'out'.
+     */
+    abstract class Stage {
+        String          name;
+        int             numThreads;
+        BlockingQueue<QueryJob> in;
+        BlockingQueue<QueryJob> out;
+        AtomicInteger   running;
+        AtomicInteger   processed = new AtomicInteger();
+        AtomicLong      busyNanos = new AtomicLong();
+        long            startTime, endTime;
+        List<Thread>    threads = new ArrayList<>();
+
+        Stage(String name, int numThreads) {
+            this.name = name;
+            this.numThreads = numThreads;
+            this.running = new AtomicInteger(numThreads);
+        }
+
+        /**
+         * Processes one query of this stage.
+         * @param job The query
+         * @throws Exception
+         */
+        abstract void process(QueryJob job) throws Exception;
+
+        void start() {
+            startTime = System.nanoTime();
+            for (int i = 0; i < numThreads; i++) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                }, "pipeline-"+name+"-"+(i+1));
+                t.setDaemon(true);
+                threads.add(t);
+                t.start();
+            }
+        }
+
+        private void work() {
+            try {
+                while(true) {
+                    QueryJob job = in.take();
+                    if(job == POISON) {
+                        in.put(POISON);     // for the other threads of this stage
+                        break;
+                    }
+                    if(null == failure) {
+                        long start = System.nanoTime();
+                        try {
+                            process(job);
+                        }
+                        catch (Exception ex) {
+                            if(null == failure) {
+                                failure = ex;
+                                inFlight.release(maxInFlight);  // so that the feeder is not blocked
+                                if(null != reorderWindow)
+                                    reorderWindow.release(maxPending);
+                            }
+                        }
+                        busyNanos.addAndGet(System.nanoTime() - start);
+                        processed.incrementAndGet();
+                    }
+                    if(null != out)
+                        out.put(job);
+                }
+                if(0 == running.decrementAndGet()) {   // last thread of this stage
+                    endTime = System.nanoTime();
+                    if(null != out)
+                        out.put(POISON);
+                }
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void join() throws InterruptedException {
+            for (Thread t : threads)
+                t.join();
+        }
+
+        /**
+         * Prints the throughput of this stage: to be used for sizing its pool.
+         */
+        void report() {
+            double wallSec = (endTime - startTime) / 1e9;
+            double busySec = busyNanos.get() / 1e9;
+            System.out.println(String.format("Stage %-12s threads: %2d, queries: %d, busy: %.2fs, "
+                + "throughput: %.2f q/s per thread, utilization: %.0f%%",
+                name, numThreads, processed.get(), busySec,
+                (busySec > 0) ? processed.get() / busySec : 0,
+                (wallSec > 0) ? 100 * busySec / (wallSec * numThreads) : 0));
+        }
+    }
+
+    public QueryPipeline(final RelevanceBasedLanguageModel rblm) {
+
+        this.rblm = rblm;
+        Properties prop = rblm.prop;
+
+        queueSize = Integer.parseInt(prop.getProperty("pipeline.queueSize", "16"));
+        maxInFlight = Integer.parseInt(prop.getProperty("pipeline.maxInFlight", "64"));
+        maxPending = Integer.parseInt(prop.getProperty("pipeline.maxPending", String.valueOf(4 * maxInFlight)));
+        if(maxPending < maxInFlight) {
+            System.err.println("pipeline.maxPending must be at least pipeline.maxInFlight; set to "+maxInFlight);
+            maxPending = maxInFlight;
+        }
+
+        stages = new ArrayList<>();
+        stages.add(new Stage("initial", Integer.parseInt(prop.getProperty("pipeline.threads.initial", "1"))) {
+            @Override
+            void process(QueryJob job) throws Exception {
+                System.out.println(job.query.qid+": Initial query: " + job.luceneQuery.toString(rblm.fieldToSearch));
+                job.topDocs = rblm.initialRetrieval(job.luceneQuery);
+                if(null != rblm.expansionGate && !rblm.expansionGate.shouldExpand(job.query,
+                        job.luceneQuery.toString(rblm.fieldToSearch).split(" "), job.topDocs)) {
+                    // not to be expanded: passed through the other stages as it is
+                    job.resBuffer = rblm.makeResult(job.query.qid, job.topDocs.scoreDocs, rblm.runName+"-gate-firstpass");
+                    job.topDocs = null;
+                }
+            }
+        });
+        stages.add(new Stage("feedback", Integer.parseInt(prop.getProperty("pipeline.threads.feedback", "2"))) {
+            @Override
+            void process(QueryJob job) throws Exception {
+                if(null != job.resBuffer)
+                    return;
+                long start = System.nanoTime();
+                job.rlm = new RLM(rblm.rlm);
+                job.rlm.setFeedbackStats(job.topDocs, job.luceneQuery.toString(rblm.fieldToSearch).split(" "));
+                job.expansionNanos += System.nanoTime() - start;
+            }
+        });
+        stages.add(new Stage("expansion", Integer.parseInt(prop.getProperty("pipeline.threads.expansion", "2"))) {
+            @Override
+            void process(QueryJob job) throws Exception {
+                if(null != job.resBuffer)
+                    return;
+                long start = System.nanoTime();
+                job.expandedQuery = rblm.expandQuery(job.query, job.topDocs, job.rlm);
+                job.rlm = null;     // the feedback state is not needed anymore
+                job.expansionNanos += System.nanoTime() - start;
+            }
+        });
+        stages.add(new Stage("reretrieval", Integer.parseInt(prop.getProperty("pipeline.threads.reretrieval", "2"))) {
+            @Override
+            void process(QueryJob job) throws Exception {
+                if(null != job.resBuffer)
+                    return;
+                long start = System.nanoTime();
+                job.topDocs = rblm.reRetrieval(job.expandedQuery, job.topDocs);
+                job.resBuffer = rblm.makeResult(job.query.qid, job.topDocs.scoreDocs);
+                job.topDocs = null;
+                if(null != rblm.expansionGate)
+                    rblm.expansionGate.expanded(job.expansionNanos + System.nanoTime() - start);
+            }
+        });
+        // single writer: results arriving out of order are held till the preceding ones are written
+        stages.add(new Stage("writer", 1) {
+            @Override
+            void process(QueryJob job) throws Exception {
+                try {
+                    int written = resWriter.write(job.seq, job.query.qid, job.resBuffer);
+                    if(null != reorderWindow)
+                        reorderWindow.release(written);
+                }
+                finally {
+                    inFlight.release();     // out of the pipeline, even if held
+                }
+            }
+        });
+
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            stage.in = (i == 0) ? new ArrayBlockingQueue<QueryJob>(queueSize) : stages.get(i-1).out;
+            stage.out = (i == stages.size()-1) ? null : new ArrayBlockingQueue<QueryJob>(queueSize);
+        }
+    }
+
+    /**
+     * Feeds the queries in the pipeline, and waits till all of them are written.
+     * @param feed The queries, in dispatch order
+     * @param resWriter Writer of the results, in the order of the query file
+     * @throws Exception The first exception thrown by any of the stages
+     */
+    public void run(QueryFeed feed, OrderedResWriter resWriter) throws Exception {
+
+        this.resWriter = resWriter;
+        inFlight = new Semaphore(maxInFlight);
+        reorderWindow = feed.inFileOrder() ? new Semaphore(maxPending) : null;
+        for (Stage stage : stages)
+            stage.start();
+
+        BlockingQueue<QueryJob> head = stages.get(0).in;
+        while(null == failure && feed.next()) {
+            if(null != reorderWindow)
+                reorderWindow.acquire();
+            inFlight.acquire();
+            TRECQuery query = feed.query();
+            // the query parser is not thread-safe; parsing is done here, in the feeding thread
+            Query luceneQuery = rblm.trecQueryparser.getAnalyzedQuery(query);
+            head.put(new QueryJob(feed.seq(), query, luceneQuery));
+        }
+        head.put(POISON);
+
+        for (Stage stage : stages)
+            stage.join();
+
+        for (Stage stage : stages)
+            stage.report();
+
+        if(null != failure)
+            throw failure;
+    } // ends run()
+}
@@ -0,0 +1,190 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import common.TRECQuery;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+
+/**
+ * Decides the order in which the queries of a batch are dispatched. <p>
+ * The cost of a query is estimated up front as the total length of the postings lists
+ * of its analyzed terms (sum of the df). Schedules: <p>
+ *  file: the order of the query file (default); <p>
+ *  cost: the most expensive queries first, to cut the tail of a concurrent run; <p>
+ *  locality: the queries with overlapping terms are dispatched one after the other, so that
+ *      the postings and the term vectors stay hot in the OS cache: a greedy nearest-neighbour
+ *      chain, starting from the most expensive query, and going on each time to the query
+ *      with the largest Jaccard overlap of the analyzed terms with the last one (the costlier,
+ *      of the ties); when none overlaps, a new chain starts from the most expensive left.
+ *      Quadratic in the number of queries. <p>
+ * Only the dispatch order changes; the results are still written in the order of the query file.
+ * @author dwaipayan
+ */
+public class QueryScheduler {
+
+    RelevanceBasedLanguageModel rblm;
+
+    /**
+     * Estimated cost of a query.
+     */
+    static class QueryCost {
+        int         index;      // position of the query in the query file
+        String      qid;
+        long        cost;       // sum of the df of the query terms
+        int[]       terms;      // ids of the analyzed terms of the query, sorted
+        double      overlap;    // Jaccard overlap with the query dispatched before it (locality)
+
+        QueryCost(int index, String qid) {
+            this.index = index;
+            this.qid = qid;
+        }
+    }
+
+    public QueryScheduler(RelevanceBasedLanguageModel rblm) {
+        this.rblm = rblm;
+    }
+
+    /**
+     * Returns the positions of the queries, in the order in which they are to be dispatched.
+     * @param queries The queries, in the order of the query file
+     * @param schedule file / cost / locality
+     * @return Positions of the queries in dispatch order
+     * @throws Exception
+     */
+    public List<Integer> getOrder(List<TRECQuery> queries, String schedule) throws Exception {
+
+        if("file".equals(schedule)) {
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < queries.size(); i++)
+                order.add(i);
+            return order;
+        }
+
+        List<QueryCost> costs = new ArrayList<>();
+        HashMap<Term, Integer> termIds = new HashMap<>();
+        int index = 0;
+        for (TRECQuery query : queries)
+            costs.add(estimateCost(index++, query, termIds));
+
+        switch (schedule) {
+            case "cost":
+                Collections.sort(costs, new Comparator<QueryCost>() {
+                    @Override
+                    public int compare(QueryCost t1, QueryCost t2) {
+                        return t1.cost<t2.cost?1:t1.cost==t2.cost?Integer.compare(t1.index, t2.index):-1;
+                    }
+                });
+                break;
+            case "locality":
+                costs = chainByOverlap(costs);
+                break;
+            default:
+                System.err.println("Unknown schedule: "+schedule+"; using the order of the query file");
+                break;
+        }
+
+        System.out.println("Query schedule: "+schedule);
+        System.out.println("qid\testimated-cost\toverlap-with-previous");
+        List<Integer> order = new ArrayList<>();
+        for (QueryCost qc : costs) {
+            System.out.println(qc.qid+"\t"+qc.cost+"\t"+String.format("%.2f", qc.overlap));
+            order.add(qc.index);
+        }
+
+        return order;
+    } // ends getOrder()
+
+    /**
+     * Estimates the cost of a query from the df of its analyzed terms.
+     * @param index Position of the query in the query file
+     * @param query The query
+     * @param termIds Ids of the terms seen so far; the new terms of the query are added
+     * @return The estimated cost
+     * @throws Exception
+     */
+    private QueryCost estimateCost(int index, TRECQuery query, HashMap<Term, Integer> termIds) throws Exception {
+
+        QueryCost qc = new QueryCost(index, query.qid);
+        Query luceneQuery = rblm.trecQueryparser.getAnalyzedQuery(query);
+
+        Set<Term> terms = new HashSet<>();
+        rblm.indexSearcher.createNormalizedWeight(luceneQuery, false).extractTerms(terms);
+
+        qc.terms = new int[terms.size()];
+        int i = 0;
+        for (Term term : terms) {
+            qc.cost += rblm.indexReader.docFreq(term);
+            Integer id = termIds.get(term);
+            if(null == id)
+                termIds.put(term, id = termIds.size());
+            qc.terms[i++] = id;
+        }
+        Arrays.sort(qc.terms);
+
+        return qc;
+    }
+
+    /**
+     * Returns the queries chained by the overlap of their terms (see the locality schedule).
+     * @param costs The queries, in the order of the query file
+     * @return The queries in dispatch order
+     */
+    private List<QueryCost> chainByOverlap(List<QueryCost> costs) {
+
+        List<QueryCost> left = new ArrayList<>(costs);
+        List<QueryCost> order = new ArrayList<>();
+        QueryCost last = null;
+        while(!left.isEmpty()) {
+            int next = -1;
+            double best = 0;
+            for (int i = 0; i < left.size(); i++) {
+                QueryCost qc = left.get(i);
+                double overlap = (null == last) ? 0 : jaccard(last.terms, qc.terms);
+                // the largest overlap; of the ties (and with no overlap), the costlier, then the earlier
+                if(-1 == next || overlap > best || (overlap == best && (qc.cost > left.get(next).cost
+                        || (qc.cost == left.get(next).cost && qc.index < left.get(next).index)))) {
+                    next = i;
+                    best = overlap;
+                }
+            }
+            last = left.remove(next);
+            last.overlap = best;
+            order.add(last);
+        }
+        return order;
+    }
+
+    /**
+     * Jaccard overlap of two sorted sets of term ids.
+     */
+    static double jaccard(int[] a, int[] b) {
+
+        int common = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if(a[i] == b[j]) {
+                common++;
+                i++;
+                j++;
+            }
+            else if(a[i] < b[j])
+                i++;
+            else
+                j++;
+        }
+        int union = a.length + b.length - common;
+        return (0 == union) ? 0 : (double) common / union;
+    }
+}
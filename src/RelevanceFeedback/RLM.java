@@ -7,6 +7,7 @@
 package RelevanceFeedback;
 
 import common.DocumentVector;
+import common.IndexRegistry;
 import common.PerTermStat;
 import common.TRECQuery;
 import java.io.IOException;
@@ -18,12 +19,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.index.Terms;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
@@ -39,16 +36,20 @@ import org.apache.lucene.search.TopDocs;
 public class RLM {
 
     IndexReader     indexReader;
+    IndexRegistry.SharedIndex sharedIndex;  // the index, with the collection statistics shared among the runs
     IndexSearcher   indexSearcher;
+    String          fieldToSearch;      // the field of the index which will be searched with the expanded query
     String          fieldForFeedback;   // the field of the index which will be used for feedback
     Analyzer        analyzer;
     
     int             numFeedbackTerms;// number of feedback terms
     int             numFeedbackDocs; // number of feedback documents
+    FeedbackDepth   feedbackDepth;   // picks fewer feedback documents per query; null, to use numFeedbackDocs
+    boolean         scoreWeights;    // true, if P(Q|D) is taken from the first-pass scores (LM similarities only)
     float           mixingLambda;    // mixing weight, used for doc-col weight adjustment
     float           QMIX;           // query mixing parameter; to be used for RM3, RM4 (not done)
 
-    RelevanceBasedLanguageModel rblm;   // main class from which the call is done; used for setting the variables.
+    RelevanceBasedLanguageModel rblm;   // main class from which the call is done; used for setting the variables; null if made otherwise.
 
     /**
      * Hashmap of Vectors of all feedback documents, keyed by luceneDocId.
@@ -80,18 +81,65 @@ public class RLM {
 
     public RLM(RelevanceBasedLanguageModel rblm) throws IOException {
 
+        this(rblm.sharedIndex, rblm.indexSearcher, rblm.analyzer, rblm.fieldToSearch, rblm.fieldForFeedback,
+            rblm.numFeedbackDocs, rblm.numFeedbackTerms, rblm.mixingLambda, rblm.QMIX);
         this.rblm = rblm;
-        this.indexReader = rblm.indexReader;
-        this.indexSearcher = rblm.indexSearcher;
-        this.analyzer = rblm.analyzer;
-        this.fieldForFeedback = rblm.fieldForFeedback;
-        this.numFeedbackDocs = rblm.numFeedbackDocs;
-        this.numFeedbackTerms = rblm.numFeedbackTerms;
-        this.mixingLambda = rblm.mixingLambda;
-        this.QMIX = rblm.QMIX;
-        vocSize = getVocabularySize();
+    }
+
+    /**
+     * Makes an RLM with all the settings given explicitly; does not need a RelevanceBasedLanguageModel.
+     * @param sharedIndex The index, with the cached collection statistics
+     * @param indexSearcher Searcher of the index, with the similarity set
+     * @param analyzer Analyzer of the queries
+     * @param fieldToSearch Field to be searched with the expanded query
+     * @param fieldForFeedback Field to be used for feedback
+     * @param numFeedbackDocs Number of feedback documents
+     * @param numFeedbackTerms Number of expansion terms
+     * @param mixingLambda Weight of the document model in smoothing
+     * @param QMIX Query mixing parameter of RM3
+     * @throws IOException 
+     */
+    public RLM(IndexRegistry.SharedIndex sharedIndex, IndexSearcher indexSearcher, Analyzer analyzer,
+        String fieldToSearch, String fieldForFeedback, int numFeedbackDocs, int numFeedbackTerms,
+        float mixingLambda, float QMIX) throws IOException {
+
+        this.indexReader = sharedIndex.indexReader;
+        this.sharedIndex = sharedIndex;
+        this.indexSearcher = indexSearcher;
+        this.analyzer = analyzer;
+        this.fieldToSearch = fieldToSearch;
+        this.fieldForFeedback = fieldForFeedback;
+        this.numFeedbackDocs = numFeedbackDocs;
+        this.numFeedbackTerms = numFeedbackTerms;
+        this.mixingLambda = mixingLambda;
+        this.QMIX = QMIX;
+        vocSize = sharedIndex.getVocabularySize(fieldForFeedback);
         docCount = indexReader.maxDoc();      // total number of documents in the index
+    }
 
+    /**
+     * Makes a fresh RLM sharing the index, the analyzer, the parameters and 
+     * the collection statistics of 'rlm', but with its own per-query feedback state.
+     * Used to confine the per-query state to one thread when queries are processed concurrently.
+     * @param rlm The RLM to copy the settings from
+     */
+    public RLM(RLM rlm) {
+
+        this.rblm = rlm.rblm;
+        this.indexReader = rlm.indexReader;
+        this.sharedIndex = rlm.sharedIndex;
+        this.indexSearcher = rlm.indexSearcher;
+        this.analyzer = rlm.analyzer;
+        this.fieldToSearch = rlm.fieldToSearch;
+        this.fieldForFeedback = rlm.fieldForFeedback;
+        this.numFeedbackDocs = rlm.numFeedbackDocs;
+        this.feedbackDepth = rlm.feedbackDepth;
+        this.scoreWeights = rlm.scoreWeights;
+        this.numFeedbackTerms = rlm.numFeedbackTerms;
+        this.mixingLambda = rlm.mixingLambda;
+        this.QMIX = rlm.QMIX;
+        this.vocSize = rlm.vocSize;
+        this.docCount = rlm.docCount;
     }
 
     /**
@@ -101,10 +149,26 @@ public class RLM {
      * {@link #hash_P_Q_Given_D}
      * @param topDocs
      * @param analyzedQuery
-     * @param rblm
      * @throws IOException 
      */
-    public void setFeedbackStats(TopDocs topDocs, String[] analyzedQuery, RelevanceBasedLanguageModel rblm) throws IOException {
+    public void setFeedbackStats(TopDocs topDocs, String[] analyzedQuery) throws IOException {
+
+        setFeedbackStats(topDocs, analyzedQuery, null, null);
+    }
+
+    /**
+     * Same as {@link #setFeedbackStats(TopDocs, String[])}, 
+     * but the document vectors and the collection statistics of the terms are 
+     * taken from the caches when present there; the ones read from the index are put in the caches.
+     * Used to derive the feedback statistics for different settings from one index read.
+     * @param topDocs
+     * @param analyzedQuery
+     * @param docVectorCache Document vectors keyed by luceneDocId; null for no caching
+     * @param termStatCache Collection statistics keyed by the term; null for no caching
+     * @throws IOException 
+     */
+    public void setFeedbackStats(TopDocs topDocs, String[] analyzedQuery, 
+        HashMap<Integer, DocumentVector> docVectorCache, HashMap<String, PerTermStat> termStatCache) throws IOException {
 
         feedbackDocumentVectors = new HashMap<>();
         feedbackTermStats = new HashMap<>();
@@ -114,13 +178,21 @@ public class RLM {
         int hits_length;
         hits = topDocs.scoreDocs;
         hits_length = hits.length;               // number of documents retrieved in the first retrieval
+        int numDocs = (null == feedbackDepth) ? Math.min(numFeedbackDocs, hits_length)
+            : feedbackDepth.depth(hits, numFeedbackDocs);
 
-        for (int i = 0; i < Math.min(numFeedbackDocs, hits_length); i++) {
+        for (int i = 0; i < numDocs; i++) {
             // for each feedback document
             int luceneDocId = hits[i].doc;
-            Document d = indexSearcher.doc(luceneDocId);
-            DocumentVector docV = new DocumentVector(rblm.fieldForFeedback);
-            docV = docV.getDocumentVector(luceneDocId, indexReader);
+            DocumentVector docV;
+            if(null != docVectorCache && docVectorCache.containsKey(luceneDocId))
+                docV = docVectorCache.get(luceneDocId);
+            else {
+                // read once, and shared by the queries, while in the cache of the index
+                docV = sharedIndex.getDocumentVector(fieldForFeedback, luceneDocId);
+                if(null != docVectorCache)
+                    docVectorCache.put(luceneDocId, docV);
+            }
             if(docV == null)
                 continue;
             feedbackDocumentVectors.put(luceneDocId, docV);                // the document vector is added in the list
@@ -132,16 +204,21 @@ public class RLM {
 
                 if(null == feedbackTermStats.get(key)) {
                 // this feedback term is not already put in the hashmap, hence needed to be put;
-                    Term termInstance = new Term(fieldForFeedback, key);
-                    long cf = indexReader.totalTermFreq(termInstance); // CF: Returns the total number of occurrences of term across all documents (the sum of the freq() for each doc that has this term).
-                    long df = indexReader.docFreq(termInstance);       // DF: Returns the number of documents containing the term
-
-//                    feedbackTermStats.put(key, new PerTermStat(key, value.getCF(), value.getDF()));
-                    feedbackTermStats.put(key, new PerTermStat(key, cf, df));
+                    if(null != termStatCache && null != termStatCache.get(key)) {
+                        feedbackTermStats.put(key, termStatCache.get(key));
+                        continue;
+                    }
+                    // cf and df of the term, looked up in the index only once for all the queries and runs
+                    feedbackTermStats.put(key, sharedIndex.getTermStat(fieldForFeedback, key));
+                    if(null != termStatCache)
+                        termStatCache.put(key, feedbackTermStats.get(key));
                 }
             } // ends for each term of that feedback document
         } // ends for each feedback document
 
+        if(scoreWeights && setP_Q_GivenD_FromScores(hits, numDocs))
+            return;
+
         // Calculating P(Q|d) for each feedback documents
         for (Map.Entry<Integer, DocumentVector> entrySet : feedbackDocumentVectors.entrySet()) {
             // for each feedback document
@@ -161,6 +238,82 @@ public class RLM {
 
     }
 
+    /**
+     * Sets P(Q|d) of the feedback documents from their first-pass scores, instead of 
+     * computing it from the document vectors: with the LM similarities (Jelinek-Mercer,
+     * Dirichlet), the score of a document is log P(Q|d) up to a constant of the query,
+     * hence P(Q|d) = exp(score - max score), normalized over the feedback documents.
+     * (Lucene floors the score of each query term at 0, so this is an approximation
+     * for the documents scoring below the collection model on some term.)
+     * @param hits The initially retrieved documents
+     * @param numDocs Number of top documents used for feedback
+     * @return false, if the scores are unusable (not finite), leaving P(Q|d) to be computed
+     */
+    private boolean setP_Q_GivenD_FromScores(ScoreDoc[] hits, int numDocs) {
+
+        if(0 == numDocs)
+            return true;
+        float maxScore = hits[0].score;
+        double sum = 0;
+        for (int i = 0; i < numDocs; i++) {
+            if(Float.isNaN(hits[i].score) || Float.isInfinite(hits[i].score))
+                return false;
+            if(feedbackDocumentVectors.containsKey(hits[i].doc))
+                sum += Math.exp(hits[i].score - maxScore);
+        }
+        if(!(sum > 0))
+            return false;
+        for (int i = 0; i < numDocs; i++)
+            if(feedbackDocumentVectors.containsKey(hits[i].doc))
+                hash_P_Q_Given_D.put(hits[i].doc, (float)(Math.exp(hits[i].score - maxScore) / sum));
+        return true;
+    } // ends setP_Q_GivenD_FromScores()
+
+    /**
+     * Keeps only 'maxTerms' of the candidate expansion terms (besides the query terms) in 
+     * {@link #feedbackTermStats}, so that RM1 is computed over fewer terms. The terms are 
+     * ranked by \sum{d\in PRD} {tf(t,d)/|d| * P(Q|d)}, i.e. the document part of RM1, 
+     * which takes one pass over the feedback document vectors instead of |terms| x |PRD|.
+     * To be called after setFeedbackStats().
+     * @param maxTerms Number of candidate terms to keep
+     * @param analyzedQuery The query terms; always kept
+     */
+    public void pruneFeedbackTerms(int maxTerms, String[] analyzedQuery) {
+
+        if(feedbackTermStats.size() <= maxTerms)
+            return;
+
+        HashMap<String, Float> score = new HashMap<>();
+        for (Map.Entry<Integer, DocumentVector> docEntrySet : feedbackDocumentVectors.entrySet()) {
+            DocumentVector docV = docEntrySet.getValue();
+            float p_Q_GivenD = hash_P_Q_Given_D.get(docEntrySet.getKey());
+            for (Map.Entry<String, PerTermStat> entrySet : docV.docPerTermStat.entrySet()) {
+                Float s = score.get(entrySet.getKey());
+                score.put(entrySet.getKey(), (null == s ? 0 : s) +
+                    (float)entrySet.getValue().getCF() / (float)docV.getDocSize() * p_Q_GivenD);
+            }
+        }
+        List<Map.Entry<String, Float>> ranked = new ArrayList<>(score.entrySet());
+        Collections.sort(ranked, new Comparator<Map.Entry<String, Float>>() {
+            @Override
+            public int compare(Map.Entry<String, Float> t1, Map.Entry<String, Float> t2) {
+                return Float.compare(t2.getValue(), t1.getValue());
+            }
+        });
+
+        HashMap<String, PerTermStat> kept = new HashMap<>();
+        for (String qTerm : analyzedQuery)
+            if(null != feedbackTermStats.get(qTerm))
+                kept.put(qTerm, feedbackTermStats.get(qTerm));
+        int added = 0;
+        for (int i = 0; i < ranked.size() && added < maxTerms; i++) {
+            String t = ranked.get(i).getKey();
+            if(null == kept.put(t, feedbackTermStats.get(t)))
+                added++;
+        }
+        feedbackTermStats = kept;
+    } // ends pruneFeedbackTerms()
+
     /**
      * mixingLambda*tf(t,d)/d-size + (1-mixingLambda)*cf(t)/col-size
      * @param t The term under consideration
@@ -188,24 +341,6 @@ public class RLM {
         return smoothedMLEofTerm;
     } // ends return_Smoothed_MLE()
 
-    /**
-     * Returns the vocabulary size of the collection for 'fieldForFeedback'.
-     * @return vocSize Total number of terms in the vocabulary
-     * @throws IOException IOException
-     */
-    private long getVocabularySize() throws IOException {
-
-        Fields fields = MultiFields.getFields(indexReader);
-        Terms terms = fields.terms(fieldForFeedback);
-        if(null == terms) {
-            System.err.println("Field: "+fieldForFeedback);
-            System.err.println("Error buildCollectionStat(): terms Null found");
-        }
-        vocSize = terms.getSumTotalTermFreq();  // total number of terms in the index in that field
-
-        return vocSize;  // total number of terms in the index in that field
-    }
-
     public float getCollectionProbability(String term, IndexReader reader, String fieldName) throws IOException {
 
         Term termInstance = new Term(fieldName, term);
@@ -242,7 +377,7 @@ public class RLM {
      * @throws Exception 
      */
     ///*
-    public HashMap RM1(TRECQuery query, TopDocs topDocs) throws Exception {
+    public HashMap<String, WordProbability> RM1(TRECQuery query, TopDocs topDocs) throws Exception {
 
         float p_W_GivenR_one_doc;
 
@@ -296,11 +431,21 @@ public class RLM {
      * @return hashmap_PwGivenR: containing numFeedbackTerms expansion terms with normalized weights
      * @throws Exception 
      */
-    public HashMap RM3(TRECQuery query, TopDocs topDocs) throws Exception {
+    public HashMap<String, WordProbability> RM3(TRECQuery query, TopDocs topDocs) throws Exception {
 
-        hashmap_PwGivenR = new LinkedHashMap<>();
+        return RM3(query, RM1(query, topDocs));
+    }
 
-        hashmap_PwGivenR = RM1(query, topDocs);
+    /**
+     * RM3 computed from an already computed RM1 distribution, which is left unchanged.
+     * @param query The query 
+     * @param rm1 P(w|R) of all terms of PR docs, as returned by {@link #RM1(TRECQuery, TopDocs)}
+     * @return hashmap_PwGivenR: containing numFeedbackTerms expansion terms with normalized weights
+     * @throws Exception 
+     */
+    public HashMap<String, WordProbability> RM3(TRECQuery query, HashMap<String, WordProbability> rm1) throws Exception {
+
+        hashmap_PwGivenR = copyOf(rm1);
         // hashmap_PwGivenR has all terms of PRDs along with their probabilities 
 
         // +++ selecting top numFeedbackTerms terms and normalize
@@ -372,11 +517,21 @@ public class RLM {
      * @return hashmap_PwGivenR: containing numFeedbackTerms expansion terms with normalized weights
      * @throws Exception 
      */
-    public HashMap RM3_IDF1(TRECQuery query, TopDocs topDocs) throws Exception {
+    public HashMap<String, WordProbability> RM3_IDF1(TRECQuery query, TopDocs topDocs) throws Exception {
 
-        hashmap_PwGivenR = new LinkedHashMap<>();
+        return RM3_IDF1(query, RM1(query, topDocs));
+    }
 
-        hashmap_PwGivenR = RM1(query, topDocs);
+    /**
+     * RM3_IDF1 computed from an already computed RM1 distribution, which is left unchanged.
+     * @param query The query 
+     * @param rm1 P(w|R) of all terms of PR docs, as returned by {@link #RM1(TRECQuery, TopDocs)}
+     * @return hashmap_PwGivenR: containing numFeedbackTerms expansion terms with normalized weights
+     * @throws Exception 
+     */
+    public HashMap<String, WordProbability> RM3_IDF1(TRECQuery query, HashMap<String, WordProbability> rm1) throws Exception {
+
+        hashmap_PwGivenR = copyOf(rm1);
         // hashmap_PwGivenR has all terms of PRDs along with their probabilities 
 
         ///*
@@ -460,11 +615,21 @@ public class RLM {
      * @return hashmap_PwGivenR: containing numFeedbackTerms expansion terms with normalized weights
      * @throws Exception 
      */
-    public HashMap RM3_IDF2(TRECQuery query, TopDocs topDocs) throws Exception {
+    public HashMap<String, WordProbability> RM3_IDF2(TRECQuery query, TopDocs topDocs) throws Exception {
 
-        hashmap_PwGivenR = new LinkedHashMap<>();
+        return RM3_IDF2(query, RM1(query, topDocs));
+    }
 
-        hashmap_PwGivenR = RM1(query, topDocs);
+    /**
+     * RM3_IDF2 computed from an already computed RM1 distribution, which is left unchanged.
+     * @param query The query 
+     * @param rm1 P(w|R) of all terms of PR docs, as returned by {@link #RM1(TRECQuery, TopDocs)}
+     * @return hashmap_PwGivenR: containing numFeedbackTerms expansion terms with normalized weights
+     * @throws Exception 
+     */
+    public HashMap<String, WordProbability> RM3_IDF2(TRECQuery query, HashMap<String, WordProbability> rm1) throws Exception {
+
+        hashmap_PwGivenR = copyOf(rm1);
         // hashmap_PwGivenR has all terms of PRDs along with their probabilities  SORTED
 
         // +++ selecting top numFeedbackTerms*20 terms and normalize
@@ -568,11 +733,21 @@ public class RLM {
      * @return hashmap_PwGivenR: containing numFeedbackTerms expansion terms with normalized weights
      * @throws Exception 
      */
-    public HashMap RM3_IDF3(TRECQuery query, TopDocs topDocs) throws Exception {
+    public HashMap<String, WordProbability> RM3_IDF3(TRECQuery query, TopDocs topDocs) throws Exception {
 
-        hashmap_PwGivenR = new LinkedHashMap<>();
+        return RM3_IDF3(query, RM1(query, topDocs));
+    }
 
-        hashmap_PwGivenR = RM1(query, topDocs);
+    /**
+     * RM3_IDF3 computed from an already computed RM1 distribution, which is left unchanged.
+     * @param query The query 
+     * @param rm1 P(w|R) of all terms of PR docs, as returned by {@link #RM1(TRECQuery, TopDocs)}
+     * @return hashmap_PwGivenR: containing numFeedbackTerms expansion terms with normalized weights
+     * @throws Exception 
+     */
+    public HashMap<String, WordProbability> RM3_IDF3(TRECQuery query, HashMap<String, WordProbability> rm1) throws Exception {
+
+        hashmap_PwGivenR = copyOf(rm1);
         // hashmap_PwGivenR has ALL terms of PRDs along with their probabilities 
 
         // +++ selecting top numFeedbackTerms*20 terms and normalize
@@ -671,6 +846,28 @@ public class RLM {
         return hashmap_PwGivenR;
     } // end RM3_IDF3()
 
+    /**
+     * Returns the expansion terms by the RM3 variant 'rm3_IDF', from an already computed RM1.
+     * @param query The query
+     * @param rm1 P(w|R) of all terms of PR docs, as returned by {@link #RM1(TRECQuery, TopDocs)}; left unchanged
+     * @param rm3_IDF The RM3 variant: 1, 2, 3 or anything else for vanilla RM3
+     * @return hashmap_PwGivenR: containing numFeedbackTerms expansion terms with normalized weights
+     * @throws Exception 
+     */
+    public HashMap<String, WordProbability> RM3Variant(TRECQuery query, HashMap<String, WordProbability> rm1, int rm3_IDF) throws Exception {
+
+        switch(rm3_IDF) {
+            case 1:
+                return RM3_IDF1(query, rm1);
+            case 2:
+                return RM3_IDF2(query, rm1);
+            case 3:
+                return RM3_IDF3(query, rm1);
+            default:
+                return RM3(query, rm1);
+        }
+    }
+
     /**
      * Returns the expanded query in BooleanQuery form with P(w|R) as 
      * corresponding weights for the expanded terms
@@ -690,7 +887,7 @@ public class RLM {
             WordProbability wProba = entrySet.getValue();
             float value = wProba.expansionWeight;
 
-            Term t = new Term(rblm.fieldToSearch, key);
+            Term t = new Term(fieldToSearch, key);
             Query tq = new TermQuery(t);
             tq.setBoost(value);
             BooleanQuery.setMaxClauseCount(4096);
@@ -700,6 +897,21 @@ public class RLM {
         return booleanQuery;
     } // ends getExpandedQuery()
 
+    /**
+     * Returns a copy of 'map', with copies of the WordProbability-s, in the same order.
+     * @param map P(w|R) of the terms
+     * @return The copy
+     */
+    private static HashMap<String, WordProbability> copyOf(HashMap<String, WordProbability> map) {
+
+        HashMap<String, WordProbability> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, WordProbability> entrySet : map.entrySet()) {
+            WordProbability wp = entrySet.getValue();
+            copy.put(entrySet.getKey(), new WordProbability(wp.w, wp.p_w_given_R, wp.expansionWeight));
+        }
+        return copy;
+    }
+
     private static HashMap sortTermWeight(HashMap map) {
         List<Map.Entry<String, WordProbability>> list = new ArrayList(map.entrySet());
         // Defined Custom Comparator here
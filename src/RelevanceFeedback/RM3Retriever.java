@@ -0,0 +1,368 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import static common.CommonVariables.FIELD_BOW;
+import static common.CommonVariables.FIELD_FULL_BOW;
+import common.BoundedExecutor;
+import common.IndexRegistry;
+import common.TRECQuery;
+import common.TRECQueryParser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.Similarity;
+
+/**
+ * In-process RM3 (with IDF) retrieval over an already opened index: no properties,
+ * no query file, no res file. Configured with a {@link Builder}; thread-safe, i.e.
+ * one instance can serve concurrent retrieve() calls. <p>
+ * <pre>
+ * RM3Retriever retriever = new RM3Retriever.Builder(indexReader, analyzer)
+ *     .fieldToSearch("content").similarity(3, 1000, 0)
+ *     .numFeedbackDocs(10).numFeedbackTerms(20).queryMix(0.4f).rm3Idf(3)
+ *     .build();
+ * RM3Retriever.Result result = retriever.retrieve("query text");
+ * </pre>
+ * A list of queries can be retrieved together with retrieveAll(), expanded concurrently,
+ * and sharing the reads of the postings of the expanded queries (see {@link RequestAggregator}).
+ * The reader is not closed by the retriever.
+ * @author dwaipayan
+ */
+public class RM3Retriever {
+
+    final IndexRegistry.SharedIndex sharedIndex;
+    final IndexSearcher indexSearcher;
+    final Analyzer      analyzer;
+    final String        fieldToSearch;
+    final String        fieldForFeedback;
+    final int           numFeedbackDocs;
+    final int           numFeedbackTerms;
+    final float         QMIX;
+    final int           rm3_IDF;
+    final int           numHits;
+    final float         mixingLambda;
+    final ExecutorService searchExecutor;
+
+    /**
+     * Settings of an RM3Retriever.
+     */
+    public static class Builder {
+        IndexRegistry.SharedIndex sharedIndex;
+        Analyzer        analyzer;
+        String          fieldToSearch = FIELD_FULL_BOW;
+        String          fieldForFeedback = FIELD_BOW;
+        Similarity      similarity;
+        float           param1 = 1000;
+        int             simFuncChoice = 3;
+        float           param2 = 0;
+        Float           mixingLambda;       // null: derived from param1, as in the batch run
+        int             numFeedbackDocs = 10;
+        int             numFeedbackTerms = 20;
+        float           QMIX = 0.4f;
+        int             rm3_IDF = 3;
+        int             numHits = 1000;
+        ExecutorService searchExecutor;
+
+        /**
+         * @param indexReader The opened index
+         * @param analyzer Analyzer of the queries; the same as used in indexing
+         */
+        public Builder(IndexReader indexReader, Analyzer analyzer) {
+            this(new IndexRegistry.SharedIndex("in-process", indexReader), analyzer);
+        }
+
+        /**
+         * @param sharedIndex The opened index, with the term statistics shared with other users
+         * @param analyzer Analyzer of the queries; the same as used in indexing
+         */
+        public Builder(IndexRegistry.SharedIndex sharedIndex, Analyzer analyzer) {
+            this.sharedIndex = sharedIndex;
+            this.analyzer = analyzer;
+        }
+
+        public Builder fieldToSearch(String field) {this.fieldToSearch = field; return this;}
+        public Builder fieldForFeedback(String field) {this.fieldForFeedback = field; return this;}
+        /**
+         * Similarity, as 'similarityFunction' of the properties file (default: 3, LM-Dirichlet with mu=1000).
+         */
+        public Builder similarity(int simFuncChoice, float param1, float param2) {
+            this.simFuncChoice = simFuncChoice;
+            this.param1 = param1;
+            this.param2 = param2;
+            this.similarity = null;
+            return this;
+        }
+        /**
+         * Any other similarity; the mixingLambda is to be set along with it.
+         */
+        public Builder similarity(Similarity similarity) {this.similarity = similarity; return this;}
+        public Builder mixingLambda(float mixingLambda) {this.mixingLambda = mixingLambda; return this;}
+        public Builder numFeedbackDocs(int numFeedbackDocs) {this.numFeedbackDocs = numFeedbackDocs; return this;}
+        public Builder numFeedbackTerms(int numFeedbackTerms) {this.numFeedbackTerms = numFeedbackTerms; return this;}
+        public Builder queryMix(float QMIX) {this.QMIX = QMIX; return this;}
+        /**
+         * The RM3 variant: 1, 2, 3 (default) or 0 for vanilla RM3.
+         */
+        public Builder rm3Idf(int rm3_IDF) {this.rm3_IDF = rm3_IDF; return this;}
+        public Builder numHits(int numHits) {this.numHits = numHits; return this;}
+        /**
+         * Executor to search the segments of the index concurrently; not shut down by the retriever.
+         */
+        public Builder searchExecutor(ExecutorService searchExecutor) {this.searchExecutor = searchExecutor; return this;}
+
+        public RM3Retriever build() throws IOException {
+            if(null == sharedIndex || null == sharedIndex.indexReader || null == analyzer)
+                throw new IllegalArgumentException("indexReader and analyzer are required");
+            if(numFeedbackDocs <= 0 || numFeedbackTerms <= 0 || numHits <= 0 || QMIX < 0 || QMIX > 1)
+                throw new IllegalArgumentException("numFeedbackDocs, numFeedbackTerms, numHits must be positive, queryMix in [0,1]");
+            return new RM3Retriever(this);
+        }
+    }
+
+    /**
+     * The outcome of a retrieval.
+     */
+    public static class Result {
+        Query                   query;
+        TopDocs                 initialTopDocs;
+        List<WordProbability>   expansionTerms;
+        BooleanQuery            expandedQuery;
+        TopDocs                 topDocs;
+
+        /** The analyzed query. */
+        public Query getQuery() {return query;}
+        /** The hits of the initial retrieval, used as the feedback documents. */
+        public TopDocs getInitialTopDocs() {return initialTopDocs;}
+        /** The expansion terms (including the query terms), in the order of the expanded query. */
+        public List<WordProbability> getExpansionTerms() {return expansionTerms;}
+        /** The expanded query. */
+        public BooleanQuery getExpandedQuery() {return expandedQuery;}
+        /** The hits of the retrieval with the expanded query. */
+        public TopDocs getTopDocs() {return topDocs;}
+    }
+
+    private RM3Retriever(Builder b) throws IOException {
+
+        sharedIndex = b.sharedIndex;
+        analyzer = b.analyzer;
+        fieldToSearch = b.fieldToSearch;
+        fieldForFeedback = b.fieldForFeedback;
+        numFeedbackDocs = b.numFeedbackDocs;
+        numFeedbackTerms = b.numFeedbackTerms;
+        QMIX = b.QMIX;
+        rm3_IDF = b.rm3_IDF;
+        numHits = b.numHits;
+        if(null != b.mixingLambda)
+            mixingLambda = b.mixingLambda;
+        else if(null == b.similarity)
+            mixingLambda = RelevanceBasedLanguageModel.getMixingLambda(b.param1);
+        else
+            mixingLambda = 0.8f;
+
+        searchExecutor = b.searchExecutor;
+        indexSearcher = (null == searchExecutor) ? new IndexSearcher(sharedIndex.indexReader)
+            : new IndexSearcher(sharedIndex.indexReader, searchExecutor);
+        indexSearcher.setSimilarity(null != b.similarity ? b.similarity
+            : RelevanceBasedLanguageModel.makeSimilarity(b.simFuncChoice, b.param1, b.param2));
+        // fails here, not in the first retrieve(), if the feedback field is not in the index
+        sharedIndex.getVocabularySize(fieldForFeedback);
+    }
+
+    /**
+     * A copy of 'retriever', searching 'snapshot' instead.
+     */
+    private RM3Retriever(RM3Retriever retriever, IndexRegistry.SharedIndex snapshot) {
+
+        sharedIndex = snapshot;
+        analyzer = retriever.analyzer;
+        fieldToSearch = retriever.fieldToSearch;
+        fieldForFeedback = retriever.fieldForFeedback;
+        numFeedbackDocs = retriever.numFeedbackDocs;
+        numFeedbackTerms = retriever.numFeedbackTerms;
+        QMIX = retriever.QMIX;
+        rm3_IDF = retriever.rm3_IDF;
+        numHits = retriever.numHits;
+        mixingLambda = retriever.mixingLambda;
+        searchExecutor = retriever.searchExecutor;
+        indexSearcher = (null == searchExecutor) ? new IndexSearcher(sharedIndex.indexReader)
+            : new IndexSearcher(sharedIndex.indexReader, searchExecutor);
+        indexSearcher.setSimilarity(retriever.indexSearcher.getSimilarity(true));
+    }
+
+    /**
+     * Returns a retriever with the same settings, searching another snapshot of the index,
+     * e.g. one acquired from a {@link common.RefreshingIndex} for a query: its first and
+     * second pass, and getDocId(), see the same snapshot. Cheap; the snapshot is not released by it.
+     * @param snapshot The index to be searched
+     * @return The retriever on 'snapshot'
+     */
+    public RM3Retriever on(IndexRegistry.SharedIndex snapshot) {
+
+        return (snapshot == sharedIndex) ? this : new RM3Retriever(this, snapshot);
+    }
+
+    public IndexSearcher getIndexSearcher() {return indexSearcher;}
+
+    /**
+     * Retrieves for a query string, with the settings of the builder.
+     * @param queryText The query
+     * @return The result
+     * @throws Exception
+     */
+    public Result retrieve(String queryText) throws Exception {
+
+        TRECQuery query = new TRECQuery();
+        query.qid = "";
+        query.qtitle = queryText;
+        return retrieve(query, numFeedbackDocs, numFeedbackTerms, QMIX, rm3_IDF, numHits);
+    }
+
+    /**
+     * Retrieves for the title of a TRECQuery, with the settings of the builder.
+     * @param query The query; left unchanged
+     * @return The result
+     * @throws Exception
+     */
+    public Result retrieve(TRECQuery query) throws Exception {
+        return retrieve(query, numFeedbackDocs, numFeedbackTerms, QMIX, rm3_IDF, numHits);
+    }
+
+    /**
+     * Retrieves for the title of a TRECQuery, overriding the feedback settings of the builder.
+     * @param trecQuery The query; left unchanged
+     * @param numFeedbackDocs Number of feedback documents
+     * @param numFeedbackTerms Number of expansion terms
+     * @param QMIX Query mixing parameter
+     * @param rm3_IDF The RM3 variant
+     * @param numHits Number of documents to retrieve
+     * @return The result
+     * @throws Exception
+     */
+    public Result retrieve(TRECQuery trecQuery, int numFeedbackDocs, int numFeedbackTerms, float QMIX,
+        int rm3_IDF, int numHits) throws Exception {
+
+        TRECQuery query = copyOf(trecQuery);
+        Result result = expand(query, numFeedbackDocs, numFeedbackTerms, QMIX, rm3_IDF, numHits);
+        result.topDocs = indexSearcher.search(result.expandedQuery, numHits);
+        return result;
+    } // ends retrieve()
+
+    /**
+     * Retrieves for the titles of a list of queries together, with the settings of the builder:
+     * the queries are expanded one by one, and the expanded queries are searched in one pass over
+     * the postings of their terms ({@link BatchScorer}). The results are the same as of retrieve() for each.
+     * @param queries The queries; left unchanged
+     * @return The results, in the order of 'queries'
+     * @throws Exception
+     */
+    public List<Result> retrieveAll(List<TRECQuery> queries) throws Exception {
+        return retrieveAll(queries, null);
+    }
+
+    /**
+     * Same as retrieveAll(List), with the initial retrieval and the expansion of the queries
+     * run concurrently on 'executor'.
+     * @param queries The queries; left unchanged
+     * @param executor Threads expanding the queries; null, for one by one in this thread.
+     *  Not the searchExecutor of the retriever, nor one whose threads wait for this call.
+     * @return The results, in the order of 'queries'
+     * @throws Exception
+     */
+    public List<Result> retrieveAll(List<TRECQuery> queries, ExecutorService executor) throws Exception {
+
+        final List<Result> results = new ArrayList<>();
+        BoundedExecutor<Result> expansions = new BoundedExecutor<>(executor, Math.max(1, queries.size()));
+        try {
+            for (final TRECQuery trecQuery : queries) {
+                expansions.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() throws Exception {
+                        return expand(copyOf(trecQuery), numFeedbackDocs, numFeedbackTerms, QMIX, rm3_IDF, numHits);
+                    }
+                }, new BoundedExecutor.Completion<Result>() {
+                    @Override
+                    public void completed(Result result) {
+                        results.add(result);
+                    }
+                });
+            }
+            expansions.finish();
+        }
+        finally {
+            expansions.close();
+        }
+
+        List<BooleanQuery> expandedQueries = new ArrayList<>();
+        for (Result result : results)
+            expandedQueries.add(result.expandedQuery);
+        TopDocs[] topDocs = new BatchScorer(indexSearcher).search(expandedQueries, numHits);
+        for (int i = 0; i < results.size(); i++)
+            results.get(i).topDocs = topDocs[i];
+        return results;
+    } // ends retrieveAll()
+
+    /**
+     * Performs the initial retrieval and the expansion of a query.
+     * @return The result, without the hits of the expanded query
+     */
+    private Result expand(TRECQuery query, int numFeedbackDocs, int numFeedbackTerms, float QMIX,
+        int rm3_IDF, int numHits) throws Exception {
+
+        TRECQueryParser parser = new TRECQueryParser(null, analyzer, fieldToSearch);
+
+        Result result = new Result();
+        result.query = parser.getAnalyzedQuery(query);
+        result.initialTopDocs = indexSearcher.search(result.query, Math.max(numHits, numFeedbackDocs));
+
+        RLM rlm = new RLM(sharedIndex, indexSearcher, analyzer, fieldToSearch, fieldForFeedback,
+            numFeedbackDocs, numFeedbackTerms, mixingLambda, QMIX);
+        rlm.setFeedbackStats(result.initialTopDocs, result.query.toString(fieldToSearch).split(" "));
+        HashMap<String, WordProbability> expansion = rlm.RM3Variant(query, rlm.RM1(query, result.initialTopDocs), rm3_IDF);
+        result.expandedQuery = rlm.getExpandedQuery(expansion, query);
+
+        List<WordProbability> terms = new ArrayList<>();
+        for (WordProbability wp : expansion.values())
+            if(!wp.w.contains(":"))
+                terms.add(wp);
+        result.expansionTerms = Collections.unmodifiableList(terms);
+        return result;
+    } // ends expand()
+
+    /**
+     * Returns a copy of the query: the parser changes the query, and is not thread-safe.
+     */
+    private static TRECQuery copyOf(TRECQuery trecQuery) {
+
+        TRECQuery query = new TRECQuery();
+        query.qid = trecQuery.qid;
+        query.qtitle = trecQuery.qtitle;
+        query.qdesc = trecQuery.qdesc;
+        query.qnarr = trecQuery.qnarr;
+        return query;
+    }
+
+    /**
+     * Returns the docid (as stored in the index) of a document.
+     * @param luceneDocId The lucene docid, as in the ScoreDoc-s of the TopDocs
+     * @return The docid
+     * @throws IOException
+     */
+    public String getDocId(int luceneDocId) throws IOException {
+        return sharedIndex.getDocId(luceneDocId);
+    }
+}
@@ -8,34 +8,42 @@ package RelevanceFeedback;
 
 import static common.CommonVariables.FIELD_BOW;
 import static common.CommonVariables.FIELD_FULL_BOW;
-import static common.CommonVariables.FIELD_ID;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.similarities.BM25Similarity;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
 import org.apache.lucene.search.similarities.LMDirichletSimilarity;
 import org.apache.lucene.search.similarities.LMJelinekMercerSimilarity;
 import org.apache.lucene.search.similarities.Similarity;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
-import common.EnglishAnalyzerWithSmartStopword;
+import common.BoundedExecutor;
+import common.DocIdLookup;
+import common.IndexRegistry;
+import common.MemoryBudget;
+import common.TrecRunWriter;
 import common.TRECQuery;
 import common.TRECQueryParser;
+import common.TopicReader;
 import org.apache.lucene.search.similarities.AfterEffectB;
 import org.apache.lucene.search.similarities.BasicModelIF;
 import org.apache.lucene.search.similarities.DFRSimilarity;
@@ -51,16 +59,21 @@ public class RelevanceBasedLanguageModel {
     Properties      prop;
     String          indexPath;
     String          queryPath;      // path of the query file
+    String          queryFormat;    // trec / jsonl / tsv; null, to guess from the extension of queryPath
     File            queryFile;      // the query file
     String          stopFilePath;
+    IndexRegistry   registry;       // the indexes and analyzers, shared among the runs in this JVM
+    IndexRegistry.SharedIndex sharedIndex;  // the index at indexPath, got from the registry
     IndexReader     indexReader;
     IndexSearcher   indexSearcher;
     String          resPath;        // path of the res file
-    FileWriter      resFileWriter;  // the res file writer
+    boolean         gzipRes;        // true, if the res files are gzipped
     FileWriter      baselineFileWriter;  // the res file writer
     int             numHits;      // number of document to retrieveWithExpansionTermsFromFile
+    int             firstPassHits;  // number of documents retrieved in the first pass; the candidates, when reranking
+    boolean         rerank;         // true, if the expanded query only reranks the first-pass hits
     String          runName;        // name of the run
-    List<TRECQuery> queries;
+    List<TRECQuery> queries;        // the queries, when read all at once (to be scheduled)
     File            indexFile;          // place where the index is stored
     Analyzer        analyzer;           // the analyzer
     boolean         boolIndexExists;    // boolean flag to indicate whether the index exists or not
@@ -72,6 +85,24 @@ public class RelevanceBasedLanguageModel {
     long            vocSize;            // vocabulary size
     RLM             rlm;
     int             rm3_IDF;  // 1, 2, 3
+    int[]           rm3_IDFs; // all the RM3 variants to be run; rm3_IDF is the first of them
+    int             numThreads; // number of queries to be processed concurrently
+    boolean         pipeline;   // true, if the queries are to be processed as a staged pipeline
+    String          schedule;   // order of dispatching the queries: file / cost / locality
+    boolean         sweep;      // true, if a grid of parameter settings is to be run
+    int             searchThreads;  // number of threads searching the segments of the index concurrently, for each query
+    ExecutorService searchExecutor; // executor of the indexSearcher; null if searchThreads <= 1
+    boolean         checkpoint; // true, if the completed queries are journaled in 'resPath'.ckpt
+    boolean         resume;     // true, if the queries completed in a previous run are to be skipped
+    DeadlineController deadlineController;  // keeps each query within 'deadlineMs'; null, if no deadline
+    ExpansionGate   expansionGate;  // decides whether a query is to be expanded; null, if all are expanded
+    String          expansionMode;  // expand (only save the expansion terms) / replay (re-retrieve with the saved terms); null, for both
+    String          expansionPath;  // path of the file of the expansion terms
+    ExpansionFile.Writer expansionWriter;   // open while expanding in the 'expand' mode
+    ExpansionFile.Reader expansionReader;   // open while replaying in the 'replay' mode
+    int             batchSize;      // number of queries re-retrieved together
+    BatchScorer     batchScorer;    // re-retrieves a block of queries in one pass; null, if batchSize <= 1
+    boolean         distributedWorker;  // true, in a worker of a distributed run: the coordinator writes the res file
 
     HashMap<String, TopDocs> allTopDocsFromFileHashMap;     // For feedback from file, to contain all topdocs from file
 
@@ -81,31 +112,47 @@ public class RelevanceBasedLanguageModel {
     float           QMIX;
 
     public RelevanceBasedLanguageModel(Properties prop) throws IOException, Exception {
+        this(prop, new IndexRegistry(false, MemoryBudget.fromProperties(prop), prop.getProperty("docids.dir")));
+    }
+
+    /**
+     * @param prop The properties of the run
+     * @param registry The registry to get the index and the analyzer from;
+     *  shared by the runs of a job file (see {@link JobRunner})
+     * @throws IOException
+     * @throws Exception 
+     */
+    public RelevanceBasedLanguageModel(Properties prop, IndexRegistry registry) throws IOException, Exception {
+        this(prop, registry, false);
+    }
+
+    /**
+     * @param prop The properties of the run
+     * @param registry The registry to get the index and the analyzer from
+     * @param distributedWorker true, in a worker of a distributed run (see {@link DistributedRun}):
+     *  the res file is neither created nor emptied
+     * @throws IOException
+     * @throws Exception 
+     */
+    RelevanceBasedLanguageModel(Properties prop, IndexRegistry registry, boolean distributedWorker) throws IOException, Exception {
 
         this.prop = prop;
+        this.registry = registry;
+        this.distributedWorker = distributedWorker;
         /* property file loaded */
 
         // +++++ setting the analyzer with English Analyzer with Smart stopword list
-        EnglishAnalyzerWithSmartStopword engAnalyzer;
         stopFilePath = prop.getProperty("stopFilePath");
-        if (null == stopFilePath)
-            engAnalyzer = new common.EnglishAnalyzerWithSmartStopword();
-        else
-            engAnalyzer = new common.EnglishAnalyzerWithSmartStopword(stopFilePath);
-        analyzer = engAnalyzer.setAndGetEnglishAnalyzerWithSmartStopword();
+        analyzer = registry.getAnalyzer(stopFilePath);
         // ----- analyzer set: analyzer
 
         /* index path setting */
         indexPath = prop.getProperty("indexPath");
+        // the shards of a sharded index, searched as one index with the global statistics
+        if(null != prop.getProperty("indexPaths"))
+            indexPath = prop.getProperty("indexPaths");
         System.out.println("indexPath set to: " + indexPath);
-        indexFile = new File(prop.getProperty("indexPath"));
-        Directory indexDir = FSDirectory.open(indexFile.toPath());
-
-        if (!DirectoryReader.indexExists(indexDir)) {
-            System.err.println("Index doesn't exists in "+indexPath);
-            boolIndexExists = false;
-            System.exit(1);
-        }
+        indexFile = new File(indexPath.split(",")[0]);    // the first shard, if sharded
         fieldToSearch = prop.getProperty("fieldToSearch", FIELD_FULL_BOW);
         fieldForFeedback = prop.getProperty("fieldForFeedback", FIELD_BOW);
         System.out.println("Searching field for retrieval: " + fieldToSearch);
@@ -119,45 +166,121 @@ public class RelevanceBasedLanguageModel {
             param2 = Float.parseFloat(prop.getProperty("param2"));
 
         /* setting indexReader and indexSearcher */
-        indexReader = DirectoryReader.open(FSDirectory.open(indexFile.toPath()));
-        indexSearcher = new IndexSearcher(indexReader);
+        // opened only once, and shared by all the runs on this index; throws if the index does not exist
+        sharedIndex = registry.acquire(indexPath);
+        indexReader = sharedIndex.indexReader;
+        boolIndexExists = true;
+        searchThreads = Integer.parseInt(prop.getProperty("searchThreads", "1"));
+        if(searchThreads > 1) {
+            // the segments are searched concurrently, and the per-segment top-k hits are merged
+            searchExecutor = Executors.newFixedThreadPool(searchThreads, daemonThreadFactory("search"));
+            indexSearcher = new IndexSearcher(indexReader, searchExecutor);
+            System.out.println("Searching the index segments with "+searchThreads+" threads");
+        }
+        else
+            indexSearcher = new IndexSearcher(indexReader);
         setSimilarityFunction(simFuncChoice, param1, param2);
         /* indexReader and searcher set */
 
         /* setting query path */
+        // optional in the server mode, where the queries come with the requests
         queryPath = prop.getProperty("queryPath");
         System.out.println("queryPath set to: " + queryPath);
-        queryFile = new File(queryPath);
+        if(null != queryPath)
+            queryFile = new File(queryPath);
         /* query path set */
 
-        /* constructing the query */
+        /* the queries are read in retrieveAll(): streamed, or all at once if to be scheduled */
         trecQueryparser = new TRECQueryParser(queryPath, analyzer, fieldToSearch);
-        queries = constructQueries();
-        /* constructed the query */
+        queryFormat = prop.getProperty("queryFormat");
+        queries = new ArrayList<>();
 
         // numFeedbackTerms = number of top terms to select
         numFeedbackTerms = Integer.parseInt(prop.getProperty("numFeedbackTerms"));
         // numFeedbackDocs = number of top documents to select
         numFeedbackDocs = Integer.parseInt(prop.getProperty("numFeedbackDocs"));
 
-        // TODO: to check the mixing Lambda
-        if(param1>0.99)
-            mixingLambda = 0.8f;
-        else
-            mixingLambda = param1;
+        mixingLambda = getMixingLambda(param1);
 
         numHits = Integer.parseInt(prop.getProperty("numHits","1000"));
+        firstPassHits = Integer.parseInt(prop.getProperty("firstPassHits", ""+numHits));
+        rerank = Boolean.parseBoolean(prop.getProperty("rerank", "false"));
+        if(rerank)
+            System.out.println("Reranking the top "+firstPassHits+" documents of the first pass with the expanded query");
         QMIX = Float.parseFloat(prop.getProperty("rm3.queryMix"));
 
         rlm = new RLM(this);
+        // the number of feedback documents of each query is picked from its first-pass scores
+        if(null != prop.getProperty("feedback.adaptive"))
+            rlm.feedbackDepth = new FeedbackDepth(prop);
+        // P(Q|D) of the feedback documents from the first-pass scores: valid for the LM similarities only
+        if(Boolean.parseBoolean(prop.getProperty("feedback.scoreWeights", "false"))) {
+            if(2 != simFuncChoice && 3 != simFuncChoice)
+                throw new IllegalArgumentException("feedback.scoreWeights needs similarityFunction 2 or 3 (LM)");
+            rlm.scoreWeights = true;
+        }
+
+        // default the third method (reranking the terms using idf) is selected
+        // a comma separated list selects multiple variants, all computed from one RM1 pass
+        rm3_IDFs = ParameterSweep.parseInts(prop.getProperty("rm3.idf", "3"));
+        rm3_IDF = rm3_IDFs[0];
 
-        rm3_IDF = Integer.parseInt(prop.getProperty("rm3.idf", "3"));  // default the third method (reranking the terms using idf) is selected
+        numThreads = Integer.parseInt(prop.getProperty("numThreads", "1"));
+        pipeline = Boolean.parseBoolean(prop.getProperty("pipeline", "false"));
+        schedule = prop.getProperty("schedule", "file");
+        sweep = Boolean.parseBoolean(prop.getProperty("sweep", "false")) || rm3_IDFs.length > 1;
+        checkpoint = Boolean.parseBoolean(prop.getProperty("checkpoint", "false"));
+        resume = Boolean.parseBoolean(prop.getProperty("resume", "false"));
+        if(resume && !checkpoint)
+            throw new IllegalArgumentException("resume needs checkpoint=true");
+        gzipRes = Boolean.parseBoolean(prop.getProperty("res.gzip", "false"));
+        // the journal offsets can not be resumed from, in a gzipped file
+        if(gzipRes && checkpoint)
+            throw new IllegalArgumentException("checkpoint and resume are not supported with res.gzip");
+        expansionMode = prop.getProperty("expansionMode");
+        if(null != expansionMode) {
+            if(!expansionMode.equals("expand") && !expansionMode.equals("replay"))
+                throw new IllegalArgumentException("expansionMode: expand or replay expected; found "+expansionMode);
+            if(sweep || pipeline)
+                throw new IllegalArgumentException("expansionMode is not supported with sweep or pipeline");
+            if(resume && "expand".equals(expansionMode))
+                throw new IllegalArgumentException("resume is not supported in the expand mode");
+        }
+        if(Long.parseLong(prop.getProperty("deadlineMs", "0")) > 0) {
+            if(pipeline || sweep)
+                throw new IllegalArgumentException("deadlineMs is not supported with pipeline or sweep");
+            deadlineController = new DeadlineController(this);
+        }
+        if(Boolean.parseBoolean(prop.getProperty("gate", "false"))) {
+            if(sweep)
+                throw new IllegalArgumentException("gate is not supported with sweep");
+            expansionGate = new ExpansionGate(this);
+        }
+        batchSize = Integer.parseInt(prop.getProperty("secondPass.batchSize", "1"));
+        if(batchSize > 1) {
+            if(pipeline || sweep || rerank || null != deadlineController || null != expansionMode)
+                throw new IllegalArgumentException("secondPass.batchSize is not supported with pipeline, sweep, rerank, "
+                    + "deadlineMs or expansionMode");
+            batchScorer = new BatchScorer(indexSearcher);
+        }
 
         /* setting res path */
-        setRunName_ResFileName();
-        resFileWriter = new FileWriter(resPath);
-        System.out.println("Result will be stored in: "+resPath);
+        if(null != queryPath) {     // no res file in the server mode
+            setRunName_ResFileName();
+            // in a sweep, each setting has its own res file
+            if(!sweep && !"expand".equals(expansionMode) && !distributedWorker)
+                System.out.println("Result will be stored in: "+resPath);
+        }
         /* res path set */
+
+        if(null != expansionMode) {
+            expansionPath = prop.getProperty("expansionFile");
+            if(null == expansionPath) {
+                if("replay".equals(expansionMode))
+                    throw new IllegalArgumentException("expansionFile is needed in the replay mode");
+                expansionPath = resPath + ".exp";
+            }
+        }
     }
 
     /**
@@ -168,50 +291,124 @@ public class RelevanceBasedLanguageModel {
      */
     private void setSimilarityFunction(int choice, float param1, float param2) {
 
+        indexSearcher.setSimilarity(makeSimilarity(choice, param1, param2));
+    } // ends setSimilarityFunction()
+
+    /**
+     * Returns the similarity function with parameter(s)
+     * @param choice similarity function selection flag
+     * @param param1 similarity function parameter 1
+     * @param param2 similarity function parameter 2
+     * @return The similarity function
+     */
+    static Similarity makeSimilarity(int choice, float param1, float param2) {
+
+        Similarity similarity = null;
         switch(choice) {
             case 0:
-                indexSearcher.setSimilarity(new DefaultSimilarity());
+                similarity = new DefaultSimilarity();
                 System.out.println("Similarity function set to DefaultSimilarity");
                 break;
             case 1:
-                indexSearcher.setSimilarity(new BM25Similarity(param1, param2));
+                similarity = new BM25Similarity(param1, param2);
                 System.out.println("Similarity function set to BM25Similarity"
                     + " with parameters: " + param1 + " " + param2);
                 break;
             case 2:
-                indexSearcher.setSimilarity(new LMJelinekMercerSimilarity(param1));
+                similarity = new LMJelinekMercerSimilarity(param1);
                 System.out.println("Similarity function set to LMJelinekMercerSimilarity"
                     + " with parameter: " + param1);
                 break;
             case 3:
-                indexSearcher.setSimilarity(new LMDirichletSimilarity(param1));
+                similarity = new LMDirichletSimilarity(param1);
                 System.out.println("Similarity function set to LMDirichletSimilarity"
                     + " with parameter: " + param1);
                 break;
             case 4:
-                indexSearcher.setSimilarity(new DFRSimilarity(new BasicModelIF(), new AfterEffectB(), new NormalizationH2()));
+                similarity = new DFRSimilarity(new BasicModelIF(), new AfterEffectB(), new NormalizationH2());
                 System.out.println("Similarity function set to DFRSimilarity with default parameters");
                 break;
         }
-    } // ends setSimilarityFunction()
+        return similarity;
+    } // ends makeSimilarity()
+
+    /**
+     * Returns the mixing weight for the doc-col weight distribution, for the smoothing parameter 'param1'.
+     * @param param1 similarity function parameter 1
+     * @return mixingLambda
+     */
+    static float getMixingLambda(float param1) {
+
+        // TODO: to check the mixing Lambda
+        if(param1>0.99)
+            return 0.8f;
+        else
+            return param1;
+    }
+
+    /**
+     * Returns a ThreadFactory making daemon threads, named as 'name'-#.
+     * @param name Prefix of the thread names
+     * @return The thread factory
+     */
+    static ThreadFactory daemonThreadFactory(final String name) {
+
+        return new ThreadFactory() {
+            final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    } // ends daemonThreadFactory()
 
     /**
      * Sets runName and resPath variables depending on similarity functions.
      */
     private void setRunName_ResFileName() {
 
-        Similarity s = indexSearcher.getSimilarity(true);
-        runName = s.toString()+"-D"+numFeedbackDocs+"-T"+numFeedbackTerms;
-        runName += "-rm3idf-"+rm3_IDF;
-        runName += "-queryMix-"+QMIX;
-        runName += "-" + fieldToSearch + "-" + fieldForFeedback;
-        runName = runName.replace(" ", "").replace("(", "").replace(")", "").replace("00000", "");
+        runName = makeRunName(indexSearcher.getSimilarity(true), numFeedbackDocs, numFeedbackTerms, rm3_IDF, QMIX);
+        if("replay".equals(expansionMode))
+            runName += "-replay";
+        resPath = makeResPath(runName);
+    } // ends setRunName_ResFileName()
+
+    /**
+     * Returns the name of the run with the given parameters.
+     * @param s The similarity function
+     * @param numFeedbackDocs Number of feedback documents
+     * @param numFeedbackTerms Number of feedback terms
+     * @param rm3_IDF The RM3 variant
+     * @param QMIX Query mix
+     * @return The run name
+     */
+    String makeRunName(Similarity s, int numFeedbackDocs, int numFeedbackTerms, int rm3_IDF, float QMIX) {
+
+        String name;
+        name = s.toString()+"-D"+numFeedbackDocs+"-T"+numFeedbackTerms;
+        name += "-rm3idf-"+rm3_IDF;
+        name += "-queryMix-"+QMIX;
+        name += "-" + fieldToSearch + "-" + fieldForFeedback;
+        name = name.replace(" ", "").replace("(", "").replace(")", "").replace("00000", "");
+        return name;
+    } // ends makeRunName()
+
+    /**
+     * Returns the path of the res file for the run.
+     * @param runName Name of the run
+     * @return Path of the res file
+     */
+    String makeResPath(String runName) {
+
+        String path;
         if(null == prop.getProperty("resPath"))
-            resPath = "/home/dwaipayan/";
+            path = "/home/dwaipayan/";
         else
-            resPath = prop.getProperty("resPath");
-        resPath = resPath+queryFile.getName()+"-"+runName + ".res";
-    } // ends setRunName_ResFileName()
+            path = prop.getProperty("resPath");
+        return path+queryFile.getName()+"-"+runName + (gzipRes ? ".res.gz" : ".res");
+    } // ends makeResPath()
 
     /**
      * Parses the query from the file and makes a List<TRECQuery> 
@@ -221,115 +418,663 @@ public class RelevanceBasedLanguageModel {
      */
     private List<TRECQuery> constructQueries() throws Exception {
 
-        trecQueryparser.queryFileParse();
-        return trecQueryparser.queries;
+        return TopicReader.readAll(queryPath, queryFormat);
     } // ends constructQueries()
 
     public void retrieveAll() throws Exception {
 
-        ScoreDoc[] hits;
-        TopDocs topDocs;
-        TopScoreDocCollector collector;
-//        FileWriter baselineRes = new FileWriter(resPath+".baseline");
-
-        for (TRECQuery query : queries) {
-            collector = TopScoreDocCollector.create(numHits);
-            Query luceneQuery = trecQueryparser.getAnalyzedQuery(query);
-
-            System.out.println(query.qid+": Initial query: " + luceneQuery.toString(fieldToSearch));
-
-
-            // +++ PRF
-            // initial retrieval performed
-            indexSearcher.search(luceneQuery, collector);
-            topDocs = collector.topDocs();
-            // --- PRF
-
-            StringBuffer resBuffer;
-            /*
-            // ++ Writing the baseline res
-            baselineFileWriter = new FileWriter(resPath+".baseline", true);
-            resBuffer = new StringBuffer();
-            resBuffer = CommonMethods.writeTrecResFileFormat(query.qid, topDocs.scoreDocs, indexSearcher, runName+"baseline");
-            baselineFileWriter.write(resBuffer.toString());
-            baselineFileWriter.close();
-            // -- baseline res written
-            //*/
-
-            if(true) {
-
-                rlm.setFeedbackStats(topDocs, luceneQuery.toString(fieldToSearch).split(" "), this);
-                /**
-                 * HashMap of P(w|R) for 'numFeedbackTerms' terms with top P(w|R) among each w in R,
-                 * keyed by the term with P(w|R) as the value.
-                 */
-                HashMap<String, WordProbability> hashmap_PwGivenR;
-
-                switch(rm3_IDF) {
-                    case 1:
-                        hashmap_PwGivenR = rlm.RM3_IDF1(query, topDocs);
-                        break;
-                    case 2:
-                        hashmap_PwGivenR = rlm.RM3_IDF2(query, topDocs);
-                        break;
-                    case 3:
-                        hashmap_PwGivenR = rlm.RM3_IDF3(query, topDocs);
-                        break;
-                    default:
-                        hashmap_PwGivenR = rlm.RM3(query, topDocs);
-                        break;
+        ParameterSweep parameterSweep = null;
+        List<String> resPaths = new ArrayList<>();
+        if(sweep) {
+            parameterSweep = new ParameterSweep(this);
+            for (ParameterSweep.SweepRun run : parameterSweep.runs)
+                resPaths.add(run.resPath);
+        }
+        else
+            resPaths.add(resPath);
+        List<OrderedResWriter> resWriters = new ArrayList<>();
+        // the queries completed in a previous run, when resuming
+        HashSet<String> completed = null;
+        if("replay".equals(expansionMode)) {    // opened first: the res file is left as it is, if it is not valid
+            expansionReader = new ExpansionFile.Reader(expansionPath);
+            System.out.println("Replaying the expansion terms of "+expansionReader.getQids().size()
+                + " queries from "+expansionPath+" (saved by "+expansionReader.getDescription()+")");
+        }
+        if("expand".equals(expansionMode))
+            expansionWriter = new ExpansionFile.Writer(expansionPath, runName);  // no res file
+        else
+            completed = openResWriters(resPaths, resWriters);
+
+        QueryFeed feed;
+        if("file".equals(schedule)) {
+            // streamed from the file: retrieval starts with the first query read
+            feed = new QueryFeed(TopicReader.open(queryPath, queryFormat), completed);
+        }
+        else {
+            // to be scheduled: all the queries are read first
+            queries = new ArrayList<>();
+            for (TRECQuery query : constructQueries())
+                if(null == completed || !completed.contains(query.qid))
+                    queries.add(query);
+            feed = new QueryFeed(queries, new QueryScheduler(this).getOrder(queries, schedule));
+        }
+
+        try {
+            if(null != expansionWriter) {
+                expandAll(feed);
+                return;
+            }
+            OrderedResWriter resWriter = resWriters.get(0);
+
+            if(sweep) {
+                for (int i = 0; i < resWriters.size(); i++)
+                    parameterSweep.runs.get(i).resWriter = resWriters.get(i);
+                parameterSweep.run(feed);
+                return;
+            }
+            if(pipeline) {
+                new QueryPipeline(this).run(feed, resWriter);
+                return;
+            }
+            if(null != batchScorer) {
+                retrieveAllBatched(feed, resWriter);
+                return;
+            }
+            if(numThreads > 1) {
+                retrieveAllParallel(feed, resWriter);
+                return;
+            }
+
+            while(feed.next()) {
+                TRECQuery query = feed.query();
+                Query luceneQuery = trecQueryparser.getAnalyzedQuery(query);
+                resWriter.write(feed.seq(), query.qid, retrieveSingleQuery(query, luceneQuery, rlm));
+            } // ends for each query
+        }
+        finally {
+            if(null != deadlineController)
+                deadlineController.report();
+            if(null != expansionGate)
+                expansionGate.report();
+            if(null != rlm.feedbackDepth)
+                rlm.feedbackDepth.report();
+            if(null != batchScorer)
+                batchScorer.report();
+            feed.close();
+            for (OrderedResWriter resWriter : resWriters)
+                resWriter.close();
+            if(null != expansionWriter)
+                expansionWriter.close();
+            if(null != expansionReader)
+                expansionReader.close();
+        }
+    } // ends retrieveAll
+
+    /**
+     * The 'expand' mode: computes the expansion terms of the queries and saves them in
+     * 'expansionPath', without the re-retrieval; on a pool of 'numThreads' workers, if more than one.
+     * @param feed The queries
+     * @throws Exception 
+     */
+    private void expandAll(QueryFeed feed) throws Exception {
+
+        BoundedExecutor<Void> executor = new BoundedExecutor<>(numThreads, 2*numThreads);
+        try {
+            while(feed.next()) {
+                final TRECQuery query = feed.query();
+                final Query luceneQuery = trecQueryparser.getAnalyzedQuery(query);
+                executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        expandSingleQuery(query, luceneQuery, (numThreads > 1) ? new RLM(rlm) : rlm);
+                        return null;
+                    }
+                }, null);
+            }
+            executor.finish();
+        }
+        finally {
+            executor.close();
+        }
+    } // ends expandAll()
+
+    /**
+     * Performs the initial retrieval and the feedback for one query, 
+     * and saves the expansion terms in the expansion file.
+     * @param query The query
+     * @param luceneQuery The analyzed query
+     * @param rlm The RLM to hold the feedback state of this query
+     * @throws Exception 
+     */
+    private void expandSingleQuery(TRECQuery query, Query luceneQuery, RLM rlm) throws Exception {
+
+        System.out.println(query.qid+": Initial query: " + luceneQuery.toString(fieldToSearch));
+        TopDocs topDocs = initialRetrieval(luceneQuery);
+        rlm.setFeedbackStats(topDocs, luceneQuery.toString(fieldToSearch).split(" "));
+        expansionWriter.write(query.qid, rlm.RM3Variant(query, rlm.RM1(query, topDocs), rm3_IDF));
+    } // ends expandSingleQuery()
+
+    /**
+     * The 'replay' mode: re-retrieves with the expansion terms of the query saved in the expansion file.
+     * The initial retrieval is done only if the candidates are to be reranked.
+     * @param query The query
+     * @param luceneQuery The analyzed query
+     * @param rlm The RLM to make the expanded query
+     * @return The result of the re-retrieval in TREC-res format; empty, if the query is not in the file
+     * @throws Exception 
+     */
+    private StringBuilder replaySingleQuery(TRECQuery query, Query luceneQuery, RLM rlm) throws Exception {
+
+        HashMap<String, WordProbability> expansionTerms = expansionReader.get(query.qid);
+        if(null == expansionTerms) {
+            System.err.println(query.qid+": not in "+expansionPath+"; skipped");
+            return new StringBuilder();
+        }
+        BooleanQuery booleanQuery = rlm.getExpandedQuery(expansionTerms, query);
+        System.out.println(query.qid+": Re-retrieving with the saved expansion terms");
+        TopDocs firstPass = rerank ? initialRetrieval(luceneQuery) : null;
+        return makeResult(query.qid, reRetrieval(booleanQuery, firstPass).scoreDocs);
+    } // ends replaySingleQuery()
+
+    /**
+     * Makes the writers of the res files, with their checkpoint journals if 'checkpoint' is set.
+     * When resuming, the res files are truncated at the end of the last of the queries 
+     * completed in all of them (as per their journals); otherwise the res files are emptied.
+     * @param resPaths Paths of the res files
+     * @param resWriters The writers are added here, in the order of 'resPaths'
+     * @return The qids of the queries completed in all the res files; null, if not resuming
+     * @throws IOException 
+     */
+    private HashSet<String> openResWriters(List<String> resPaths, List<OrderedResWriter> resWriters) throws IOException {
+
+        HashSet<String> completed = null;   // completed in all the res files
+        List<LinkedHashMap<String, Long>> journaled = new ArrayList<>();
+        if(resume) {
+            for (String path : resPaths) {
+                LinkedHashMap<String, Long> entries = new CheckpointJournal(path).load();
+                journaled.add(entries);
+                if(null == completed)
+                    completed = new HashSet<>(entries.keySet());
+                else
+                    completed.retainAll(entries.keySet());
+            }
+        }
+
+        for (int i = 0; i < resPaths.size(); i++) {
+            String path = resPaths.get(i);
+            CheckpointJournal journal = null;
+            if(checkpoint) {
+                journal = new CheckpointJournal(path);
+                if(resume)
+                    journal.resume(journaled.get(i), completed);
+                else
+                    journal.start();
+            }
+            resWriters.add(new OrderedResWriter(new TrecRunWriter(path, resume, gzipRes), journal));
+        }
+
+        if(resume)
+            System.out.println("Resuming: "+completed.size()+" queries already completed are skipped");
+
+        return completed;
+    } // ends openResWriters()
+
+    /**
+     * Processes the queries on a pool of 'numThreads' workers, all sharing the 
+     * same indexSearcher. Each query gets its own RLM, so that the per-query 
+     * feedback state is confined to the worker thread processing it.
+     * At most 2*numThreads queries are kept in flight; the results are written 
+     * in the same order as the queries are in the query file.
+     * @param feed The queries, in dispatch order
+     * @param resWriter Writer of the results, in the order of the query file
+     * @throws Exception 
+     */
+    private void retrieveAllParallel(QueryFeed feed, final OrderedResWriter resWriter) throws Exception {
+
+        System.out.println("Processing queries with "+numThreads+" threads");
+        BoundedExecutor<StringBuilder> executor = new BoundedExecutor<>(numThreads, 2*numThreads);
+        try {
+            while(feed.next()) {
+                final TRECQuery query = feed.query();
+                final int seq = feed.seq();
+                // the query parser is not thread-safe; parsing is done here, in the dispatching thread
+                final Query luceneQuery = trecQueryparser.getAnalyzedQuery(query);
+                executor.submit(new Callable<StringBuilder>() {
+                    @Override
+                    public StringBuilder call() throws Exception {
+                        return retrieveSingleQuery(query, luceneQuery, new RLM(rlm));
+                    }
+                }, new BoundedExecutor.Completion<StringBuilder>() {
+                    @Override
+                    public void completed(StringBuilder resBuffer) throws Exception {
+                        resWriter.write(seq, query.qid, resBuffer);
+                    }
+                });
+            }
+            executor.finish();
+        }
+        finally {
+            executor.close();
+        }
+    } // ends retrieveAllParallel()
+
+    /**
+     * Processes the queries in blocks of 'batchSize': the initial retrieval and the
+     * expansion of the queries of a block (on a pool of 'numThreads' workers, if more
+     * than one), then the re-retrieval of all the expanded queries of the block together
+     * with the batchScorer, reading each postings list once for the block.
+     * @param feed The queries, in dispatch order
+     * @param resWriter Writer of the results, in the order of the query file
+     * @throws Exception 
+     */
+    private void retrieveAllBatched(QueryFeed feed, OrderedResWriter resWriter) throws Exception {
+
+        System.out.println("Re-retrieving the queries in blocks of "+batchSize);
+        BoundedExecutor<Void> executor = new BoundedExecutor<>(numThreads, batchSize);
+        List<QueryPipeline.QueryJob> block = new ArrayList<>();
+        try {
+            boolean more = true;
+            while(more) {
+                more = feed.next();
+                if(more) {
+                    TRECQuery query = feed.query();
+                    block.add(new QueryPipeline.QueryJob(feed.seq(), query, trecQueryparser.getAnalyzedQuery(query)));
+                }
+                if(block.size() >= batchSize || (!more && !block.isEmpty())) {
+                    retrieveBlock(block, executor, resWriter);
+                    block.clear();
                 }
-                BooleanQuery booleanQuery;
-
-                booleanQuery = rlm.getExpandedQuery(hashmap_PwGivenR, query);
-                System.out.println("Re-retrieving with QE");
-                System.out.println(booleanQuery.toString(fieldToSearch));
-                collector = TopScoreDocCollector.create(numHits);
-                indexSearcher.search(booleanQuery, collector);
-
-                topDocs = collector.topDocs();
-                hits = topDocs.scoreDocs;
-                if(hits == null)
-                    System.out.println("Nothing found");
-
-                int hits_length = hits.length;
-
-                resFileWriter = new FileWriter(resPath, true);
-
-                resBuffer = new StringBuffer();
-                for (int i = 0; i < hits_length; ++i) {
-                    int docId = hits[i].doc;
-                    Document d = indexSearcher.doc(docId);
-                    resBuffer.append(query.qid).append("\tQ0\t").
-                        append(d.get(FIELD_ID)).append("\t").
-                        append((i)).append("\t").
-                        append(hits[i].score).append("\t").
-                        append(runName).append("\n");
+            }
+        }
+        finally {
+            executor.close();
+        }
+    } // ends retrieveAllBatched()
+
+    /**
+     * Retrieves a block of queries, and writes the results.
+     * @param block The queries
+     * @param executor The workers for the initial retrieval and the expansion
+     * @param resWriter Writer of the results
+     * @throws Exception 
+     */
+    private void retrieveBlock(List<QueryPipeline.QueryJob> block, BoundedExecutor<Void> executor,
+        OrderedResWriter resWriter) throws Exception {
+
+        for (final QueryPipeline.QueryJob job : block) {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    expandJob(job, (numThreads > 1) ? new RLM(rlm) : rlm);
+                    return null;
                 }
-                resFileWriter.write(resBuffer.toString());
+            }, null);
+        }
+        executor.finish();
 
-                resFileWriter.close();
+        List<QueryPipeline.QueryJob> expanded = new ArrayList<>();
+        List<BooleanQuery> expandedQueries = new ArrayList<>();
+        for (QueryPipeline.QueryJob job : block) {
+            if(null == job.resBuffer) {     // not already answered with the first-pass ranking
+                expanded.add(job);
+                expandedQueries.add(job.expandedQuery);
             }
-        } // ends for each query
-    } // ends retrieveAll
+        }
+        long start = System.nanoTime();
+        TopDocs[] reRetrieved = batchScorer.search(expandedQueries, numHits);
+        long share = expanded.isEmpty() ? 0 : (System.nanoTime() - start) / expanded.size();
+        for (int i = 0; i < expanded.size(); i++) {
+            QueryPipeline.QueryJob job = expanded.get(i);
+            job.resBuffer = makeResult(job.query.qid, reRetrieved[i].scoreDocs);
+            if(null != expansionGate)
+                expansionGate.expanded(job.expansionNanos + share);
+        }
+
+        for (QueryPipeline.QueryJob job : block)
+            resWriter.write(job.seq, job.query.qid, job.resBuffer);
+    } // ends retrieveBlock()
+
+    /**
+     * Performs the initial retrieval and the expansion of a query of a block, setting
+     * job.expandedQuery; or job.resBuffer with the first-pass ranking, if the expansion gate says so.
+     * @param job The query
+     * @param rlm The RLM to hold the feedback state of this query
+     * @throws Exception 
+     */
+    private void expandJob(QueryPipeline.QueryJob job, RLM rlm) throws Exception {
+
+        System.out.println(job.query.qid+": Initial query: " + job.luceneQuery.toString(fieldToSearch));
+        job.topDocs = initialRetrieval(job.luceneQuery);
+        String[] analyzedQuery = job.luceneQuery.toString(fieldToSearch).split(" ");
+        if(null != expansionGate && !expansionGate.shouldExpand(job.query, analyzedQuery, job.topDocs)) {
+            job.resBuffer = makeResult(job.query.qid, job.topDocs.scoreDocs, runName+"-gate-firstpass");
+            return;
+        }
+        long start = System.nanoTime();
+        rlm.setFeedbackStats(job.topDocs, analyzedQuery);
+        job.expandedQuery = expandQuery(job.query, job.topDocs, rlm);
+        job.topDocs = null;
+        job.expansionNanos = System.nanoTime() - start;
+    } // ends expandJob()
+
+    /**
+     * Performs the initial retrieval, the feedback and the re-retrieval with 
+     * the expanded query, for one query.
+     * @param query The query
+     * @param luceneQuery The analyzed query
+     * @param rlm The RLM to hold the feedback state of this query
+     * @return The result of the re-retrieval in TREC-res format
+     * @throws Exception 
+     */
+    public StringBuilder retrieveSingleQuery(TRECQuery query, Query luceneQuery, RLM rlm) throws Exception {
+
+        if(null != expansionReader)
+            return replaySingleQuery(query, luceneQuery, rlm);
+        if(null != deadlineController)
+            return deadlineController.retrieveSingleQuery(query, luceneQuery, rlm);
+
+        TopDocs topDocs;
+
+        System.out.println(query.qid+": Initial query: " + luceneQuery.toString(fieldToSearch));
+
+        // +++ PRF
+        // initial retrieval performed
+        topDocs = initialRetrieval(luceneQuery);
+        // --- PRF
+
+        String[] analyzedQuery = luceneQuery.toString(fieldToSearch).split(" ");
+        if(null != expansionGate && !expansionGate.shouldExpand(query, analyzedQuery, topDocs))
+            return makeResult(query.qid, topDocs.scoreDocs, runName+"-gate-firstpass");
+        long expansionStart = System.nanoTime();
+
+        /*
+        // ++ Writing the baseline res
+        baselineFileWriter = new FileWriter(resPath+".baseline", true);
+        StringBuilder resBuffer = new StringBuilder();
+        resBuffer = CommonMethods.writeTrecResFileFormat(query.qid, topDocs.scoreDocs, sharedIndex, runName+"baseline");
+        baselineFileWriter.write(resBuffer.toString());
+        baselineFileWriter.close();
+        // -- baseline res written
+        //*/
+
+        rlm.setFeedbackStats(topDocs, analyzedQuery);
+
+        BooleanQuery booleanQuery = expandQuery(query, topDocs, rlm);
+
+        topDocs = reRetrieval(booleanQuery, topDocs);
+        if(null != expansionGate)
+            expansionGate.expanded(System.nanoTime() - expansionStart);
+
+        return makeResult(query.qid, topDocs.scoreDocs);
+    } // ends retrieveSingleQuery()
+
+    /**
+     * Performs the initial retrieval.
+     * search(Query, int) searches the segment slices in parallel, if the searcher has an executor.
+     * @param luceneQuery The analyzed query
+     * @return Top 'firstPassHits' documents
+     * @throws IOException 
+     */
+    public TopDocs initialRetrieval(Query luceneQuery) throws IOException {
+
+        return indexSearcher.search(luceneQuery, firstPassHits);
+    }
+
+    /**
+     * Computes the expansion terms with the selected RM3 variant ('rm3_IDF'), 
+     * and returns the expanded query.
+     * The feedback statistics of 'rlm' must already be set.
+     * @param query The query
+     * @param topDocs Initially retrieved document list
+     * @param rlm The RLM holding the feedback state of this query
+     * @return BooleanQuery to be used for the re-retrieval
+     * @throws Exception 
+     */
+    public BooleanQuery expandQuery(TRECQuery query, TopDocs topDocs, RLM rlm) throws Exception {
+
+        return expandQuery(query, rlm.RM1(query, topDocs), rlm, rm3_IDF);
+    }
+
+    /**
+     * Computes the expansion terms with the RM3 variant 'rm3_IDF' from an already
+     * computed RM1 distribution, and returns the expanded query.
+     * @param query The query
+     * @param rm1 P(w|R) of all terms of the feedback documents, as returned by RLM.RM1(); left unchanged
+     * @param rlm The RLM holding the feedback state of this query
+     * @param rm3_IDF The RM3 variant: 1, 2, 3 or anything else for vanilla RM3
+     * @return BooleanQuery to be used for the re-retrieval
+     * @throws Exception 
+     */
+    public BooleanQuery expandQuery(TRECQuery query, HashMap<String, WordProbability> rm1, RLM rlm, int rm3_IDF) throws Exception {
+
+        /**
+         * HashMap of P(w|R) for 'numFeedbackTerms' terms with top P(w|R) among each w in R,
+         * keyed by the term with P(w|R) as the value.
+         */
+        HashMap<String, WordProbability> hashmap_PwGivenR = rlm.RM3Variant(query, rm1, rm3_IDF);
+        BooleanQuery booleanQuery;
+
+        booleanQuery = rlm.getExpandedQuery(hashmap_PwGivenR, query);
+        System.out.println(query.qid+": Re-retrieving with QE");
+        System.out.println(booleanQuery.toString(fieldToSearch));
+
+        return booleanQuery;
+    } // ends expandQuery()
+
+    /**
+     * Performs the re-retrieval with the expanded query.
+     * @param booleanQuery The expanded query
+     * @return Top 'numHits' documents
+     * @throws IOException 
+     */
+    public TopDocs reRetrieval(BooleanQuery booleanQuery) throws IOException {
+
+        TopDocs topDocs = indexSearcher.search(booleanQuery, numHits);
+        if(topDocs.scoreDocs == null)
+            System.out.println("Nothing found");
+
+        return topDocs;
+    }
+
+    /**
+     * Performs the re-retrieval with the expanded query; only the first-pass
+     * hits are reranked, if 'rerank' is set.
+     * @param booleanQuery The expanded query
+     * @param firstPass The initially retrieved documents
+     * @return Top 'numHits' documents
+     * @throws IOException 
+     */
+    public TopDocs reRetrieval(BooleanQuery booleanQuery, TopDocs firstPass) throws IOException {
+
+        if(!rerank)
+            return reRetrieval(booleanQuery);
+        return indexSearcher.search(secondPassQuery(booleanQuery, firstPass), numHits);
+    }
+
+    /**
+     * Returns the query of the re-retrieval: the expanded query, restricted to
+     * the first-pass hits if 'rerank' is set.
+     * @param booleanQuery The expanded query
+     * @param firstPass The initially retrieved documents
+     * @return The query to be searched
+     */
+    public Query secondPassQuery(BooleanQuery booleanQuery, TopDocs firstPass) {
+
+        return rerank ? CandidateFilter.restrict(booleanQuery, firstPass.scoreDocs) : booleanQuery;
+    }
+
+    /**
+     * Returns the retrieved documents of a query in TREC-res format.
+     * @param qid The query id
+     * @param hits The retrieved documents
+     * @return The result in TREC-res format
+     * @throws IOException 
+     */
+    public StringBuilder makeResult(String qid, ScoreDoc[] hits) throws IOException {
+
+        return makeResult(qid, hits, runName);
+    }
+
+    /**
+     * Returns the retrieved documents of a query in TREC-res format, tagged with 'runName'.
+     * @param qid The query id
+     * @param hits The retrieved documents
+     * @param runName Name of the run
+     * @return The result in TREC-res format
+     * @throws IOException 
+     */
+    public StringBuilder makeResult(String qid, ScoreDoc[] hits, String runName) throws IOException {
+
+        int hits_length = Math.min(hits.length, numHits);  // a first-pass ranking may be deeper
+
+        StringBuilder resBuffer = new StringBuilder(hits_length * 64);
+        for (int i = 0; i < hits_length; ++i)
+            TrecRunWriter.appendRow(resBuffer, qid, sharedIndex.getDocId(hits[i].doc), i, hits[i].score, runName);
+
+        return resBuffer;
+    } // ends makeResult()
+
+    /**
+     * Stops the search threads (if any) and releases the index to the registry.
+     * @throws IOException 
+     */
+    public void close() throws IOException {
+
+        if(null != searchExecutor)
+            searchExecutor.shutdown();
+        registry.release(sharedIndex);
+    } // ends close()
 
     public static void main(String[] args) throws IOException, Exception {
 
         String usage = "java RelevanceBasedLanguageModel <properties-file>\n"
+                + "   or: java RelevanceBasedLanguageModel -jobs <job-file> [<num-concurrent-jobs>]\n"
+                + "   (job-file: one properties-file per line; all run in one JVM, sharing the indexes)\n"
+                + "   or: java RelevanceBasedLanguageModel -server <properties-file>\n"
+                + "   (serves GET /search?q=<query>[&fbDocs=&fbTerms=&qmix=&idf=&hits=] on server.host:server.port,\n"
+                + "    with server.threads request threads; queryPath and resPath are not needed;\n"
+                + "    server.batchWindowMs (default 0: off): retrieve together the requests arriving within that\n"
+                + "    many ms, at most server.maxBatchSize (default 32), on server.batchThreads (default server.threads) threads;\n"
+                + "    server.refreshMs (default 0: off): reopen the index that often, to search the documents added since)\n"
+                + "   or: java RelevanceBasedLanguageModel -coordinator <properties-file>\n"
+                + "   or: java RelevanceBasedLanguageModel -worker <properties-file>\n"
+                + "   (distributed run: the coordinator splits the queries into tasks of distributed.taskSize (default 10)\n"
+                + "    queries, for the workers sharing the spool directory distributed.spool (default <res-file>.spool),\n"
+                + "    and merges their results into the res file; distributed.workers: number of local workers it\n"
+                + "    launches (default 0); the tasks of a worker whose heartbeat (every distributed.heartbeatMs, default\n"
+                + "    1000) stops for distributed.workerTimeoutMs (default 10000) are reassigned)\n"
+                + "   or: java RelevanceBasedLanguageModel -cleanDocIds <docids-dir> <index-dir>...\n"
+                + "   (deletes the docid side files in the shared docids.dir of the segments not in the latest commit\n"
+                + "    of any of the indexes, which are to be all the indexes with their side files there)\n"
                 + "Properties file must contain the following fields:\n"
                 + "1. stopFilePath: path of the stopword file\n"
                 + "2. fieldToSearch: field of the index to be searched\n"
-                + "3. indexPath: Path of the index\n"
-                + "4. queryPath: path of the query file (in proper xml format)\n"
+                + "3. indexPath: Path of the index (or indexPaths, see below); with -jobs, also the name of an index\n"
+                + "    defined in the job file; the docids are read from its \"docid\" DocValues, if indexed with,\n"
+                + "    else from the side files built (once) in docids.dir (default <indexPath>.docids)\n"
+                + "4. queryPath: path of the query file (TREC xml; or jsonl / tsv, see queryFormat)\n"
                 + "5. numFeedbackTerms: number of feedback terms to use\n"
                 + "6. numFeedbackDocs: number of feedback documents to use\n"
                 + "7. resPath: path of the directory to store res file\n"
                 + "8. rm3.queryMix (0.0-1.0): query mix to weight between P(w|R) and P(w|Q)\n"
-                + "9. rm3.idf: 1/2/3: the method to be used"
-                + "10. similarityFunction: 0.DefaultSimilarity, 1.BM25Similarity, 2.LMJelinekMercerSimilarity, 3.LMDirichletSimilarity\n";
+                + "9. rm3.idf: 1/2/3: the method to be used; a comma separated list runs all of them from one RM1\n"
+                + "10. similarityFunction: 0.DefaultSimilarity, 1.BM25Similarity, 2.LMJelinekMercerSimilarity, 3.LMDirichletSimilarity\n"
+                + "Optional fields:\n"
+                + "numThreads: number of queries to be processed concurrently (default 1)\n"
+                + "searchThreads: number of threads searching the index segments of a query concurrently (default 1)\n"
+                + "indexPaths: comma separated paths of the shards of a sharded index, instead of indexPath; searched as\n"
+                + "    one index, with the collection statistics summed over the shards (with searchThreads, in parallel)\n"
+                + "cache.budgetMB: memory for the cached term statistics, document vectors and docid columns\n"
+                + "    (built in the heap, without side files) of the indexes (default: a quarter of the heap);\n"
+                + "    the least recently used entries are evicted beyond it; the docid columns are kept, and the\n"
+                + "    ones that do not fit are read from the stored fields\n"
+                + "docids.dir: directory of the docid side files, shared by the indexes (default: <index-dir>.docids\n"
+                + "    beside each index); empty, for no side files: the docid columns are built in the heap\n"
+                + "pipeline: true/false; process the queries as a staged pipeline (default false), with\n"
+                + "    pipeline.threads.{initial,feedback,expansion,reretrieval}: threads of each stage,\n"
+                + "    pipeline.queueSize: capacity of the queues between the stages (default 16),\n"
+                + "    pipeline.maxInFlight: maximum number of queries in the pipeline (default 64),\n"
+                + "    pipeline.maxPending: maximum number of results held for the preceding ones, with\n"
+                + "        schedule=file (default 4 x maxInFlight)\n"
+                + "schedule: file/cost/locality; order of dispatching the queries (default file)\n"
+                + "sweep: true/false; run a grid of settings (default false), with comma separated values in\n"
+                + "    sweep.numFeedbackDocs, sweep.numFeedbackTerms, sweep.queryMix, sweep.param1\n"
+                + "deadlineMs: time budget of a query (default 0: none); the query is degraded to fewer feedback docs,\n"
+                + "    fewer candidate terms, or at last the first-pass ranking, and tagged in the run column;\n"
+                + "    deadline.minFeedbackDocs: the least number of feedback docs (default 1); not with pipeline, sweep\n"
+                + "feedback.adaptive: gap/mass; pick the number of feedback docs of each query, at most numFeedbackDocs,\n"
+                + "    from its first-pass scores (default: numFeedbackDocs for all): gap cuts at the first drop between\n"
+                + "    consecutive scores >= feedback.adaptive.threshold (default 0.3) of their range; mass keeps the fewest\n"
+                + "    docs with feedback.adaptive.threshold (default 0.9) of the mass of exp(score);\n"
+                + "    feedback.adaptive.minDocs: the least number of feedback docs (default 1)\n"
+                + "firstPassHits: number of documents retrieved in the first pass (default numHits)\n"
+                + "rerank: true/false; the expanded query only reranks the firstPassHits documents of the first pass,\n"
+                + "    instead of searching the whole index (default false)\n"
+                + "feedback.scoreWeights: true/false; take P(Q|D) of the feedback docs from the first-pass scores,\n"
+                + "    exp(score - max) normalized, instead of recomputing it (default false; LM similarities only)\n"
+                + "expansionMode: expand/replay; expand only saves the expansion terms of the queries in expansionFile\n"
+                + "    (default <res-file>.exp), without the re-retrieval; replay re-retrieves with the expansion\n"
+                + "    terms saved in expansionFile, without the initial retrieval and the feedback (default: both);\n"
+                + "    not with pipeline, sweep; resume only with replay\n"
+                + "secondPass.batchSize: number of expanded queries re-retrieved together in one pass over the\n"
+                + "    postings of their terms (default 1: one by one); not with pipeline, sweep, rerank, deadlineMs, expansionMode\n"
+                + "gate: true/false; expand only the queries passing the gate, the rest get the first-pass ranking\n"
+                + "    (default false): at least gate.minHits hits (default 1), nqc of the top gate.k scores\n"
+                + "    (default numFeedbackDocs) >= gate.minNQC (default 0), mean idf of the query terms\n"
+                + "    <= gate.maxAvgIDF (default Infinity); not with sweep\n"
+                + "queryFormat: trec/jsonl/tsv; format of the query file (default: by the extension of queryPath)\n"
+                + "checkpoint: true/false; journal the completed queries in <res-file>.ckpt (default false)\n"
+                + "resume: true/false; skip the queries journaled as completed by a previous run,\n"
+                + "    dropping any partially written tail of the res file (default false); needs checkpoint\n"
+                + "res.gzip: true/false; write the res files gzipped, as <res-file>.gz (default false);\n"
+                + "    not with checkpoint and resume\n";
 
         Properties prop = new Properties();
 
+        if(2 == args.length && "-server".equals(args[0])) {
+            prop.load(new FileReader(args[1]));
+            final RelevanceBasedLanguageModel rblm = new RelevanceBasedLanguageModel(prop);
+            final SearchServer server = new SearchServer(rblm);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    server.stop();
+                    rblm.registry.report();
+                    try {
+                        rblm.close();
+                    } catch (IOException ex) {
+                        System.err.println("Error closing the index: "+ex);
+                    }
+                }
+            });
+            server.start();     // serves till the JVM is stopped
+            return;
+        }
+
+        if(2 == args.length && ("-coordinator".equals(args[0]) || "-worker".equals(args[0]))) {
+            if("-coordinator".equals(args[0])) {
+                if(!new DistributedRun(args[1], false).coordinate())
+                    System.exit(1);
+            }
+            else
+                new DistributedRun(args[1], true).work();
+            return;
+        }
+
+        if(args.length >= 3 && "-cleanDocIds".equals(args[0])) {
+            int deleted = DocIdLookup.deleteStaleSideFiles(args[1], Arrays.asList(args).subList(2, args.length));
+            System.out.println("Deleted "+deleted+" stale docid side files in "+args[1]);
+            return;
+        }
+
+        if(args.length >= 2 && "-jobs".equals(args[0])) {
+            int numConcurrentJobs = (args.length > 2) ? Integer.parseInt(args[2]) : 1;
+            int failed = new JobRunner(args[1], numConcurrentJobs).run();
+            if(failed > 0)
+                System.exit(1);
+            return;
+        }
+
         if(1 != args.length) {
             System.out.println("Usage: " + usage);
             args = new String[1];
@@ -340,6 +1085,8 @@ public class RelevanceBasedLanguageModel {
         RelevanceBasedLanguageModel rblm = new RelevanceBasedLanguageModel(prop);
 
         rblm.retrieveAll();
+        rblm.registry.report();
+        rblm.close();
     } // ends main()
 
 }
@@ -0,0 +1,270 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import common.TRECQuery;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gathers the queries of concurrent callers into batches, and retrieves each batch
+ * with RM3Retriever.retrieveAll(): the queries of a batch are expanded concurrently, and
+ * the expanded queries are searched in one pass over their postings. A batch is closed
+ * 'windowMs' after its first query arrived, or when it has 'maxBatchSize' queries; the
+ * batches are retrieved on 'numWorkers' threads, and the queries are expanded on another
+ * 'numWorkers' threads, shared by the batches. <p>
+ * Each caller gets its own result, the same as of RM3Retriever.retrieve() with the settings
+ * of the retriever; a caller waits at most 'windowMs' longer than alone. If a batch fails,
+ * its queries are retrieved one by one, so that a bad query fails only its own caller.
+ * @author dwaipayan
+ */
+public class RequestAggregator implements Closeable {
+
+    RM3Retriever    retriever;
+    long            windowNanos;    // time a batch is kept open for more queries
+    int             maxBatchSize;   // a batch is closed on reaching that many queries
+
+    LinkedBlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+    Thread          dispatcher;     // gathers the batches
+    ExecutorService workers;        // retrieves the batches
+    ExecutorService expanders;      // expands the queries of the batches
+    volatile boolean closed;
+
+    AtomicLong      numBatches = new AtomicLong();
+    AtomicLong      numRequests = new AtomicLong();
+    AtomicLong      numFallbacks = new AtomicLong();    // batches retrieved one by one after a failure
+
+    /**
+     * A query waiting for its result; the Future handed to the caller.
+     */
+    static class Request implements Future<RM3Retriever.Result> {
+
+        TRECQuery       query;
+        long            arrival;        // System.nanoTime()
+        CountDownLatch  done = new CountDownLatch(1);
+        RM3Retriever.Result result;
+        Exception       error;
+
+        Request(TRECQuery query) {
+            this.query = query;
+            arrival = System.nanoTime();
+        }
+
+        void complete(RM3Retriever.Result result, Exception error) {
+            this.result = result;
+            this.error = error;
+            done.countDown();
+        }
+
+        @Override
+        public RM3Retriever.Result get() throws InterruptedException, ExecutionException {
+            done.await();
+            return report();
+        }
+
+        @Override
+        public RM3Retriever.Result get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+            if(!done.await(timeout, unit))
+                throw new TimeoutException();
+            return report();
+        }
+
+        private RM3Retriever.Result report() throws ExecutionException {
+            if(null != error)
+                throw new ExecutionException(error);
+            return result;
+        }
+
+        /**
+         * A query already in a batch is retrieved anyway; not cancellable.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+    }
+
+    /**
+     * @param retriever The retriever, with the settings for all the queries
+     * @param windowMs Time (in milliseconds) a batch waits for more queries after its first
+     * @param maxBatchSize Maximum number of queries in a batch
+     * @param numWorkers Number of batches retrieved concurrently, and of queries expanded concurrently
+     */
+    public RequestAggregator(RM3Retriever retriever, long windowMs, int maxBatchSize, int numWorkers) {
+
+        if(windowMs < 0 || maxBatchSize < 1 || numWorkers < 1)
+            throw new IllegalArgumentException("windowMs must be non-negative, maxBatchSize and numWorkers positive");
+        this.retriever = retriever;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.maxBatchSize = maxBatchSize;
+        workers = Executors.newFixedThreadPool(numWorkers);
+        expanders = Executors.newFixedThreadPool(numWorkers);
+        dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "request-aggregator");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Queues a query for the next batch; returns immediately.
+     * @param query The query; its title is searched
+     * @return The result, when the batch of the query is retrieved
+     */
+    public Future<RM3Retriever.Result> submit(TRECQuery query) {
+
+        if(closed)
+            throw new IllegalStateException("RequestAggregator is closed");
+        Request request = new Request(query);
+        requests.add(request);
+        return request;
+    }
+
+    /**
+     * Retrieves for a query in the next batch, waiting for the result.
+     * @param query The query; its title is searched
+     * @return The result
+     * @throws Exception The exception of the retrieval of the query
+     */
+    public RM3Retriever.Result retrieve(TRECQuery query) throws Exception {
+
+        try {
+            return submit(query).get();
+        }
+        catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+        }
+    }
+
+    /**
+     * Gathers the queries into batches till closed, and hands each batch to the workers.
+     */
+    private void dispatch() {
+
+        while(!closed || !requests.isEmpty()) {
+            try {
+                Request first = requests.poll(100, TimeUnit.MILLISECONDS);
+                if(null == first)
+                    continue;
+                final List<Request> batch = new ArrayList<>();
+                batch.add(first);
+                long deadline = first.arrival + windowNanos;
+                while(batch.size() < maxBatchSize) {
+                    long wait = deadline - System.nanoTime();
+                    Request next = (wait > 0) ? requests.poll(wait, TimeUnit.NANOSECONDS) : requests.poll();
+                    if(null == next)
+                        break;
+                    batch.add(next);
+                }
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        retrieveBatch(batch);
+                    }
+                });
+            }
+            catch (InterruptedException ex) {
+                break;
+            }
+        }
+    } // ends dispatch()
+
+    /**
+     * Retrieves a batch, and hands the results to the callers.
+     */
+    private void retrieveBatch(List<Request> batch) {
+
+        List<TRECQuery> queries = new ArrayList<>();
+        for (Request request : batch)
+            queries.add(request.query);
+        try {
+            List<RM3Retriever.Result> results = retriever.retrieveAll(queries, expanders);
+            for (int i = 0; i < batch.size(); i++)
+                batch.get(i).complete(results.get(i), null);
+        }
+        catch (Exception ex) {
+            // find the failing query: one by one
+            numFallbacks.incrementAndGet();
+            for (Request request : batch) {
+                try {
+                    request.complete(retriever.retrieve(request.query), null);
+                }
+                catch (Exception e) {
+                    request.complete(null, e);
+                }
+            }
+        }
+        catch (Throwable t) {
+            for (Request request : batch)
+                request.complete(null, new ExecutionException(t));
+            throw t;
+        }
+        numBatches.incrementAndGet();
+        numRequests.addAndGet(batch.size());
+    } // ends retrieveBatch()
+
+    /**
+     * Stops taking queries; the queries already submitted are retrieved before it returns.
+     */
+    @Override
+    public void close() {
+
+        if(closed)
+            return;
+        closed = true;
+        try {
+            dispatcher.join();
+            // submitted while closing, after the dispatcher stopped
+            for (Request request; null != (request = requests.poll()); )
+                request.complete(null, new IllegalStateException("RequestAggregator is closed"));
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            expanders.shutdown();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Prints the number of batches and their mean size.
+     */
+    public void report() {
+
+        long batches = numBatches.get();
+        if(0 == batches)
+            return;
+        System.out.println(String.format("Request aggregator: %d queries in %d batches, %.2f queries per batch "
+            + "(window %d ms, at most %d); %d batches retrieved one by one after a failure",
+            numRequests.get(), batches, (double)numRequests.get() / batches,
+            TimeUnit.NANOSECONDS.toMillis(windowNanos), maxBatchSize, numFallbacks.get()));
+    }
+}
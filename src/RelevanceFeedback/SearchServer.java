@@ -0,0 +1,269 @@
+/**
+ * RM3-with-IDF: Complete;
+ * RM3IDF proposed in:
+ * "Selecting Discriminative Terms for Relevance Model" --- SIGIR 2019
+ * Dwaipayan Roy, Sumit Bhatia and Mandar Mitra.
+ */
+package RelevanceFeedback;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import common.IndexRegistry;
+import common.RefreshingIndex;
+import common.TRECQuery;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * Serves RM3 retrieval over HTTP, keeping the index, the searcher and the analyzer open. <p>
+ * GET /search?q=query text[&amp;fbDocs=&amp;fbTerms=&amp;qmix=&amp;idf=&amp;hits=] <p>
+ * fbDocs, fbTerms, qmix and idf override numFeedbackDocs, numFeedbackTerms,
+ * rm3.queryMix and rm3.idf of the properties for that request; hits overrides numHits.
+ * The response is a JSON object with the expansion terms (with their weights in the
+ * expanded query) and the ranked docids (with the scores). <p>
+ * Properties: server.host (default 127.0.0.1), server.port (default 8080),
+ * server.threads (default: number of processors): the requests are handled
+ * concurrently on a pool of that many threads. <p>
+ * server.batchWindowMs (default 0: off): the requests without overrides arriving within that many
+ * milliseconds are retrieved together, at most server.maxBatchSize (default 32) of them, on
+ * server.batchThreads (default server.threads) threads (see {@link RequestAggregator}). <p>
+ * server.refreshMs (default 0: off): the index is reopened that often, to search the documents
+ * added since (see {@link RefreshingIndex}); each request searches one snapshot of the index.
+ * Not with server.batchWindowMs.
+ * @author dwaipayan
+ */
+public class SearchServer {
+
+    RelevanceBasedLanguageModel rblm;
+    RM3Retriever    retriever;      // with the settings of the properties
+    RequestAggregator aggregator;   // batches the requests without overrides; null, if not batching
+    RefreshingIndex refreshingIndex;    // the snapshots of the index being appended to; null, if not refreshed
+
+    String          host;           // address to listen on
+    int             port;           // port to listen on
+    int             numThreads;     // number of requests handled concurrently
+    HttpServer      server;
+    ExecutorService pool;
+    AtomicInteger   requestCount;   // for naming the queries of the requests
+
+    public SearchServer(RelevanceBasedLanguageModel rblm) throws IOException {
+
+        this.rblm = rblm;
+        Properties prop = rblm.prop;
+        host = prop.getProperty("server.host", "127.0.0.1");
+        port = Integer.parseInt(prop.getProperty("server.port", "8080"));
+        numThreads = Integer.parseInt(prop.getProperty("server.threads",
+            ""+Runtime.getRuntime().availableProcessors()));
+        requestCount = new AtomicInteger();
+        retriever = new RM3Retriever.Builder(rblm.sharedIndex, rblm.analyzer)
+            .fieldToSearch(rblm.fieldToSearch).fieldForFeedback(rblm.fieldForFeedback)
+            .similarity(rblm.indexSearcher.getSimilarity(true)).mixingLambda(rblm.mixingLambda)
+            .numFeedbackDocs(rblm.numFeedbackDocs).numFeedbackTerms(rblm.numFeedbackTerms)
+            .queryMix(rblm.QMIX).rm3Idf(rblm.rm3_IDF).numHits(rblm.numHits)
+            .searchExecutor(rblm.searchExecutor).build();
+        long refreshMs = Long.parseLong(prop.getProperty("server.refreshMs", "0"));
+        long batchWindowMs = Long.parseLong(prop.getProperty("server.batchWindowMs", "0"));
+        if(batchWindowMs > 0 && refreshMs > 0)
+            throw new IllegalArgumentException("server.batchWindowMs is not supported with server.refreshMs");
+        if(refreshMs > 0) {
+            refreshingIndex = new RefreshingIndex(rblm.sharedIndex);
+            refreshingIndex.start(refreshMs);
+            System.out.println("Refreshing the index every "+refreshMs+" ms");
+        }
+        if(batchWindowMs > 0)
+            aggregator = new RequestAggregator(retriever, batchWindowMs,
+                Integer.parseInt(prop.getProperty("server.maxBatchSize", "32")),
+                Integer.parseInt(prop.getProperty("server.batchThreads", ""+numThreads)));
+    }
+
+    /**
+     * Starts serving; returns immediately.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/search", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleSearch(exchange);
+            }
+        });
+        pool = Executors.newFixedThreadPool(numThreads);
+        server.setExecutor(pool);
+        server.start();
+        System.out.println("Serving on http://"+host+":"+server.getAddress().getPort()+"/search with "+numThreads+" threads");
+    }
+
+    /**
+     * Stops serving, waiting at most a second for the requests being handled.
+     */
+    public void stop() {
+
+        if(null != server)
+            server.stop(1);
+        if(null != pool)
+            pool.shutdown();
+        if(null != aggregator) {
+            aggregator.close();
+            aggregator.report();
+        }
+        if(null != refreshingIndex) {
+            try {
+                refreshingIndex.close();
+            } catch (IOException ex) {
+                System.err.println("Error closing the refreshed index: "+ex);
+            }
+        }
+    }
+
+    private void handleSearch(HttpExchange exchange) throws IOException {
+
+        int status;
+        String response;
+        try {
+            HashMap<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+            String q = params.get("q");
+            if(null == q || q.trim().isEmpty())
+                throw new IllegalArgumentException("missing parameter: q");
+            int fbDocs = params.containsKey("fbDocs") ? Integer.parseInt(params.get("fbDocs")) : rblm.numFeedbackDocs;
+            int fbTerms = params.containsKey("fbTerms") ? Integer.parseInt(params.get("fbTerms")) : rblm.numFeedbackTerms;
+            float qmix = params.containsKey("qmix") ? Float.parseFloat(params.get("qmix")) : rblm.QMIX;
+            int idf = params.containsKey("idf") ? Integer.parseInt(params.get("idf")) : rblm.rm3_IDF;
+            int hits = params.containsKey("hits") ? Integer.parseInt(params.get("hits")) : rblm.numHits;
+            if(fbDocs <= 0 || fbTerms <= 0 || hits <= 0 || qmix < 0 || qmix > 1)
+                throw new IllegalArgumentException("out of range: fbDocs, fbTerms, hits must be positive, qmix in [0,1]");
+
+            response = search(q, fbDocs, fbTerms, qmix, idf, hits);
+            status = 200;
+        }
+        catch (IllegalArgumentException ex) {   // including NumberFormatException
+            response = "{\"error\":"+quote((null != ex.getMessage()) ? ex.getMessage() : String.valueOf(ex))+"}";
+            status = 400;
+        }
+        catch (Exception ex) {
+            System.err.println("Error serving "+exchange.getRequestURI()+": "+ex);
+            response = "{\"error\":"+quote(String.valueOf(ex))+"}";
+            status = 500;
+        }
+
+        byte[] bytes = response.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * Retrieves with the expanded query for one request.
+     * @return The response, in JSON
+     * @throws Exception
+     */
+    private String search(String q, int fbDocs, int fbTerms, float qmix, int idf, int hits) throws Exception {
+
+        long start = System.nanoTime();
+        TRECQuery query = new TRECQuery();
+        query.qid = "req-"+requestCount.incrementAndGet();
+        query.qtitle = q;
+        // the snapshot of the index for both the passes and the docids of this request
+        IndexRegistry.SharedIndex snapshot = (null == refreshingIndex) ? null : refreshingIndex.acquire();
+        try {
+            RM3Retriever retriever = (null == snapshot) ? this.retriever : this.retriever.on(snapshot);
+            return search(query, retriever, fbDocs, fbTerms, qmix, idf, hits, start);
+        }
+        finally {
+            if(null != snapshot)
+                refreshingIndex.release(snapshot);
+        }
+    } // ends search()
+
+    private String search(TRECQuery query, RM3Retriever retriever, int fbDocs, int fbTerms, float qmix, int idf,
+        int hits, long start) throws Exception {
+
+        RM3Retriever.Result result;
+        if(null != aggregator && fbDocs == rblm.numFeedbackDocs && fbTerms == rblm.numFeedbackTerms
+            && qmix == rblm.QMIX && idf == rblm.rm3_IDF && hits == rblm.numHits)
+            result = aggregator.retrieve(query);
+        else
+            result = retriever.retrieve(query, fbDocs, fbTerms, qmix, idf, hits);
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"qid\":").append(quote(query.qid));
+        json.append(",\"query\":").append(quote(result.getQuery().toString(rblm.fieldToSearch)));
+        json.append(",\"expansionTerms\":[");
+        boolean first = true;
+        for (WordProbability wp : result.getExpansionTerms()) {
+            json.append(first ? "" : ",").append("{\"term\":").append(quote(wp.getTerm()))
+                .append(",\"weight\":").append(number(wp.getExpansionWeight())).append("}");
+            first = false;
+        }
+        json.append("],\"hits\":[");
+        first = true;
+        for (ScoreDoc hit : result.getTopDocs().scoreDocs) {
+            json.append(first ? "" : ",").append("{\"docid\":")
+                .append(quote(retriever.getDocId(hit.doc)))     // null, for a document without docid
+                .append(",\"score\":").append(number(hit.score)).append("}");
+            first = false;
+        }
+        json.append("],\"timeMs\":").append((System.nanoTime() - start) / 1000000).append("}");
+
+        return json.toString();
+    } // ends search()
+
+    private static HashMap<String, String> parseParams(String rawQuery) throws IOException {
+
+        HashMap<String, String> params = new HashMap<>();
+        if(null == rawQuery)
+            return params;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if(eq <= 0)
+                continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq+1), "UTF-8"));
+        }
+        return params;
+    }
+
+    /**
+     * Returns 's' as a JSON string (quoted and escaped); null, if 's' is null.
+     */
+    private static String quote(String s) {
+
+        if(null == s)
+            return "null";
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if(c < 0x20)
+                        sb.append(String.format("\\u%04x", (int)c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Returns 'f' as a JSON number; null, for NaN and the infinities, which JSON does not have.
+     */
+    private static String number(float f) {
+        return (Float.isNaN(f) || Float.isInfinite(f)) ? "null" : Float.toString(f);
+    }
+}
@@ -6,11 +6,12 @@
 package RelevanceFeedback;
 
 /**
- *
+ * An expansion term, with its probability in the relevance model
+ * and its weight in the expanded query.
  * @author dwaipayan
  */
 
-class WordProbability {
+public class WordProbability {
     String w;
     float expansionWeight;  // 
     float p_w_given_R;      // this is the weight after incorporating the idf proba. of w given R (withour idf)
@@ -29,4 +30,10 @@ class WordProbability {
         this.p_w_given_R = p_w_given_R;
     }
 
+    public String getTerm() {return w;}
+    public float getExpansionWeight() {return expansionWeight;}
+    public float getProbability() {return p_w_given_R;}
+
+    @Override
+    public String toString() {return w+"^"+expansionWeight;}
 }
@@ -0,0 +1,143 @@
+package common;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs tasks on a pool of threads, with at most 'maxInFlight' of them submitted and not
+ * completed: submit() completes the eldest one first, when that many are in flight. A task
+ * is completed in the submitting thread, in the order of submission: its Completion is
+ * handed the result. So the memory held by the results waiting is bounded, and the
+ * results can be written in order. <p>
+ * Without a pool (one thread), each task is run and completed in submit(). <p>
+ * The exception of a task is thrown by the submit() or the finish() completing it; the
+ * tasks still in flight are cancelled by close(). Not thread-safe: one submitting thread.
+ * <pre>
+ * BoundedExecutor&lt;StringBuilder&gt; executor = new BoundedExecutor&lt;&gt;(numThreads, 2 * numThreads);
+ * try {
+ *     for (...)
+ *         executor.submit(task, completion);
+ *     executor.finish();
+ * } finally {
+ *     executor.close();
+ * }
+ * </pre>
+ * @author dwaipayan
+ */
+public class BoundedExecutor<T> implements Closeable {
+
+    /**
+     * Takes the result of a task, in the submitting thread.
+     */
+    public interface Completion<T> {
+        void completed(T result) throws Exception;
+    }
+
+    final ExecutorService   pool;           // null, to run the tasks in submit()
+    final boolean           ownPool;        // the pool is shut down by close()
+    final int               maxInFlight;
+    final ArrayDeque<Task<T>> inFlight = new ArrayDeque<>();
+
+    /**
+     * A task submitted, with its Completion.
+     */
+    static class Task<T> {
+        final Future<T>     future;
+        final Completion<T> completion;     // null, if the result is not needed
+
+        Task(Future<T> future, Completion<T> completion) {
+            this.future = future;
+            this.completion = completion;
+        }
+    }
+
+    /**
+     * @param numThreads Number of threads of the pool; 1 (or less), for none: the tasks
+     *  are run in the submitting thread
+     * @param maxInFlight Maximum number of tasks submitted and not completed
+     */
+    public BoundedExecutor(int numThreads, int maxInFlight) {
+
+        this((numThreads > 1) ? Executors.newFixedThreadPool(numThreads) : null, maxInFlight, true);
+    }
+
+    /**
+     * @param pool The threads, shared with others; not shut down by close().
+     *  Not one whose threads wait for the tasks of this. null, to run the tasks in submit()
+     * @param maxInFlight Maximum number of tasks submitted and not completed
+     */
+    public BoundedExecutor(ExecutorService pool, int maxInFlight) {
+
+        this(pool, maxInFlight, false);
+    }
+
+    private BoundedExecutor(ExecutorService pool, int maxInFlight, boolean ownPool) {
+
+        if(maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be positive: "+maxInFlight);
+        this.pool = pool;
+        this.maxInFlight = maxInFlight;
+        this.ownPool = ownPool;
+    }
+
+    /**
+     * Submits a task, after completing the eldest in flight if 'maxInFlight' are.
+     * @param task The task
+     * @param completion Takes the result of the task; null, if it is not needed
+     * @throws Exception The exception of a completed task
+     */
+    public void submit(Callable<T> task, Completion<T> completion) throws Exception {
+
+        if(null == pool) {
+            T result = task.call();
+            if(null != completion)
+                completion.completed(result);
+            return;
+        }
+        while(inFlight.size() >= maxInFlight)
+            completeEldest();
+        inFlight.add(new Task<>(pool.submit(task), completion));
+    }
+
+    /**
+     * Completes all the tasks in flight, in the order of submission; more may be submitted after.
+     * @throws Exception The exception of a completed task
+     */
+    public void finish() throws Exception {
+
+        while(!inFlight.isEmpty())
+            completeEldest();
+    }
+
+    private void completeEldest() throws Exception {
+
+        Task<T> task = inFlight.poll();
+        T result;
+        try {
+            result = task.future.get();
+        }
+        catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+        }
+        if(null != task.completion)
+            task.completion.completed(result);
+    }
+
+    /**
+     * Cancels the tasks in flight (those not finished), and shuts down the pool if it is its own.
+     */
+    @Override
+    public void close() {
+
+        for (Task<T> task : inFlight)
+            task.future.cancel(true);
+        inFlight.clear();
+        if(ownPool && null != pool)
+            pool.shutdownNow();
+    }
+}
@@ -21,7 +21,6 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
@@ -37,28 +36,22 @@ import org.apache.lucene.search.TopScoreDocCollector;
 public class CommonMethods {
 
     /**
-     * Returns a string-buffer in the TREC-res format for the passed queryId
+     * Returns a string-builder in the TREC-res format for the passed queryId (see TrecRunWriter);
+     * the docids are looked up in the DocIdLookup of the index, not in the stored fields.
      * @param queryId
      * @param hits
-     * @param searcher
+     * @param index The index searched
      * @param runName
      * @return
      * @throws IOException 
      */
-    static final public StringBuffer writeTrecResFileFormat(String queryId, ScoreDoc[] hits, 
-        IndexSearcher searcher, String runName) throws IOException {
+    static final public StringBuilder writeTrecResFileFormat(String queryId, ScoreDoc[] hits, 
+        IndexRegistry.SharedIndex index, String runName) throws IOException {
 
-        StringBuffer resBuffer = new StringBuffer();
+        StringBuilder resBuffer = new StringBuilder(hits.length * 64);
         int hits_length = hits.length;
-        for (int i = 0; i < hits_length; ++i) {
-            int luceneDocId = hits[i].doc;
-            Document d = searcher.doc(luceneDocId);
-            resBuffer.append(queryId).append("\tQ0\t").
-                append(d.get("docid")).append("\t").
-                append((i)).append("\t").
-                append(hits[i].score).append("\t").
-                append(runName).append("\n");                
-        }
+        for (int i = 0; i < hits_length; ++i)
+            TrecRunWriter.appendRow(resBuffer, queryId, index.getDocId(hits[i].doc), i, hits[i].score, runName);
 
         return resBuffer;
     }
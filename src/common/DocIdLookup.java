@@ -0,0 +1,519 @@
+package common;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Resolves the lucene docids to the docids of the collection (CommonVariables.FIELD_ID),
+ * without loading the stored fields: a column of the docids for each segment of the index,
+ * looked up in constant time. <p>
+ * The column of a segment is the SORTED or BINARY DocValues of FIELD_ID, if the index has it.
+ * Else it is a side file, built once from the stored fields of the segment and memory-mapped
+ * after: &lt;segment&gt;-&lt;segment-id&gt;.col, with the maxDoc, the offsets of the docids
+ * and their UTF-8 bytes; in the directory of the side files ('docids.dir'), or else in
+ * &lt;index-dir&gt;.docids beside the index. A segment does not change once written, and
+ * its id is unique (across the indexes too), so that the file stays valid as long as the
+ * segment is there. Beside the index, the files of the segments merged away (neither in the
+ * reader nor in the latest commit of the index) are deleted when a lookup is made with new
+ * segments; a reader still on them keeps its mapping, where the file system allows it, or
+ * builds them again. In a directory shared by the indexes, they are deleted by
+ * deleteStaleSideFiles(), given all the indexes. <p>
+ * Without side files ('docids.dir' empty), or if they can not be written (e.g. a read-only
+ * index), the column is built in the heap when first needed, once, and pinned in a MemoryBudget
+ * cache (not evicted). If it does not fit in the budget, the docids of that segment are read
+ * from the stored fields at each lookup instead. <p>
+ * Thread-safe.
+ * @author dwaipayan
+ */
+public class DocIdLookup {
+
+    static final int        MAGIC = 0x44434f4c;     // "DCOL"
+    static final int        HEADER_BYTES = 8;       // magic, maxDoc
+    static final long       HEAP_COLUMN_BYTES = 100;    // estimated size of a heap column besides its buffer
+    static final Charset    UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The docids of one segment.
+     */
+    static abstract class Column {
+        /**
+         * @param doc The docid within the segment
+         * @return The docid of the collection; null, if the document has none
+         */
+        abstract String get(int doc) throws IOException;
+    }
+
+    /**
+     * From the DocValues of the segment; the segment reader keeps them per thread.
+     */
+    static class DocValuesColumn extends Column {
+
+        final LeafReader    leaf;
+        final boolean       sorted;     // SORTED, else BINARY
+
+        DocValuesColumn(LeafReader leaf, boolean sorted) {
+            this.leaf = leaf;
+            this.sorted = sorted;
+        }
+
+        @Override
+        String get(int doc) throws IOException {
+            BytesRef bytes = sorted ? leaf.getSortedDocValues(CommonVariables.FIELD_ID).get(doc)
+                : leaf.getBinaryDocValues(CommonVariables.FIELD_ID).get(doc);
+            return (0 == bytes.length) ? null : bytes.utf8ToString();
+        }
+    }
+
+    /**
+     * From the stored fields of the segment, one document at a time: of a segment whose
+     * column does not fit in the heap.
+     */
+    static class StoredFieldsColumn extends Column {
+
+        final LeafReader    leaf;
+
+        StoredFieldsColumn(LeafReader leaf) {
+            this.leaf = leaf;
+        }
+
+        @Override
+        String get(int doc) throws IOException {
+            DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(CommonVariables.FIELD_ID);
+            leaf.document(doc, visitor);
+            return visitor.getDocument().get(CommonVariables.FIELD_ID);
+        }
+    }
+
+    /**
+     * From a side file (mapped), or its copy in the heap.
+     */
+    static class BufferColumn extends Column {
+
+        final ByteBuffer    buffer;     // not read with its own position: shared by the threads
+        final int           maxDoc;
+        final int           dataStart;  // the docids, after the offsets
+
+        BufferColumn(ByteBuffer buffer, int maxDoc) {
+            this.buffer = buffer;
+            this.maxDoc = maxDoc;
+            dataStart = HEADER_BYTES + 4 * (maxDoc + 1);
+        }
+
+        @Override
+        String get(int doc) {
+            int start = buffer.getInt(HEADER_BYTES + 4 * doc);
+            int length = buffer.getInt(HEADER_BYTES + 4 * (doc + 1)) - start;
+            if(0 == length)
+                return null;
+            byte[] bytes = new byte[length];
+            ByteBuffer view = buffer.duplicate();   // a position of this thread
+            view.position(dataStart + start);
+            view.get(bytes);
+            return new String(bytes, UTF8);
+        }
+    }
+
+    final int[]             docStarts;  // docBase of each segment
+    final LeafReader[]      leaves;     // the segments
+    final Column[]          columns;    // of each segment; null, for a column in the heap not built yet
+    final Object[]          coreKeys;   // core cache key of each segment, to reuse the columns on reopening
+    final String            docIdDir;   // directory of the side files; null, beside the index; empty, none
+    /**
+     * The columns built in the heap, pinned, keyed by the core cache key of their segment.
+     */
+    final MemoryBudget.Cache<Object, BufferColumn> heapColumns;
+    int                     numDocValues, numSideFiles, numInHeap, numStored, numBuilt;
+    boolean                 noSideFiles;    // after one could not be made: the rest in the heap too
+
+    /**
+     * Makes the columns of all the segments of the index, building the missing side files.
+     * @param reader The index
+     * @param docIdDir Directory of the side files, shared by the indexes; null, for
+     *  &lt;index-dir&gt;.docids beside each index; empty, for no side files
+     * @param heapColumns The cache of the columns built in the heap; closed by the caller
+     * @throws IOException
+     */
+    public DocIdLookup(IndexReader reader, String docIdDir, MemoryBudget.Cache<Object, BufferColumn> heapColumns) throws IOException {
+        this(reader, docIdDir, heapColumns, null);
+    }
+
+    /**
+     * @param reader The index
+     * @param docIdDir See above
+     * @param heapColumns See above
+     * @param previous The lookup of an earlier version of the index, whose columns of the
+     *  segments still there are reused; null, if none
+     */
+    private DocIdLookup(IndexReader reader, String docIdDir, MemoryBudget.Cache<Object, BufferColumn> heapColumns,
+        DocIdLookup previous) throws IOException {
+
+        long start = System.currentTimeMillis();
+        this.docIdDir = docIdDir;
+        this.heapColumns = heapColumns;
+        noSideFiles = (null != docIdDir && docIdDir.isEmpty());
+        HashMap<Object, Integer> reusable = new HashMap<>();
+        if(null != previous)
+            for (int i = 0; i < previous.coreKeys.length; i++)
+                reusable.put(previous.coreKeys[i], i);
+
+        List<LeafReaderContext> contexts = reader.leaves();
+        docStarts = new int[contexts.size()];
+        leaves = new LeafReader[contexts.size()];
+        columns = new Column[contexts.size()];
+        coreKeys = new Object[contexts.size()];
+        for (int i = 0; i < contexts.size(); i++) {
+            leaves[i] = contexts.get(i).reader();
+            docStarts[i] = contexts.get(i).docBase;
+            coreKeys[i] = leaves[i].getCoreCacheKey();
+            Integer old = reusable.get(coreKeys[i]);
+            BufferColumn heapColumn;
+            if(null == old)
+                columns[i] = openColumn(leaves[i]);
+            else if(null != (heapColumn = previous.heapColumns.unpin(coreKeys[i]))) {
+                // moved into the cache of this lookup
+                columns[i] = pinned(i, heapColumn);
+            }
+            else if(null == (columns[i] = previous.columns[old]))
+                numInHeap++;
+            else if(columns[i] instanceof DocValuesColumn)
+                numDocValues++;
+            else if(columns[i] instanceof StoredFieldsColumn)
+                numStored++;
+            else
+                numSideFiles++;
+        }
+        if(null == docIdDir && numSideFiles > 0 && (numBuilt > 0 || null == previous))
+            deleteStale();
+        if(numBuilt > 0 || null == previous)
+            System.out.println("Docid lookup: "+columns.length+" segments; "+numDocValues+" from DocValues, "
+                + numSideFiles+" from side files ("+numBuilt+" built), "+numInHeap+" in the heap, "
+                + numStored+" from the stored fields; "+(System.currentTimeMillis() - start)+" ms");
+    }
+
+    /**
+     * Deletes the side files beside the indexes of the segments neither in this lookup nor
+     * in the latest commit of their index.
+     */
+    private void deleteStale() {
+
+        HashMap<Path, Directory> indexes = new HashMap<>();    // by their directory of the side files
+        HashSet<String> keep = new HashSet<>();
+        for (LeafReader leaf : leaves) {
+            Path sideFile = sideFile(leaf, null);
+            if(null != sideFile) {
+                keep.add(sideFile.getFileName().toString());
+                indexes.put(sideFile.getParent(), segmentDirectory(leaf));
+            }
+        }
+        for (Map.Entry<Path, Directory> entry : indexes.entrySet()) {
+            try {
+                int deleted = deleteStale(entry.getKey(), Collections.singletonList(entry.getValue()), keep);
+                if(deleted > 0)
+                    System.out.println("Deleted "+deleted+" stale docid side files in "+entry.getKey());
+            }
+            catch (IOException ex) {
+                System.err.println("Stale docid side files in "+entry.getKey()+" are not deleted: "+ex);
+            }
+        }
+    }
+
+    /**
+     * Deletes the side files in a directory shared by the indexes ('docids.dir') of the segments
+     * not in the latest commit of any of them. The files of the indexes not given are deleted too,
+     * and the files of a reader still on an earlier commit are built again when it needs them.
+     * @param docIdDir The directory of the side files
+     * @param indexPaths Paths of all the indexes with their side files in docIdDir
+     * @return Number of files deleted
+     * @throws IOException
+     */
+    public static int deleteStaleSideFiles(String docIdDir, List<String> indexPaths) throws IOException {
+
+        List<Directory> indexes = new ArrayList<>();
+        try {
+            for (String indexPath : indexPaths)
+                indexes.add(FSDirectory.open(Paths.get(indexPath)));
+            return deleteStale(Paths.get(docIdDir), indexes, new HashSet<String>());
+        }
+        finally {
+            IOUtils.close(indexes);
+        }
+    }
+
+    /**
+     * Deletes the side files in 'sideDir' of the segments neither in 'keep' (file names)
+     * nor in the latest commit of any of the indexes.
+     * @return Number of files deleted
+     */
+    static int deleteStale(Path sideDir, List<Directory> indexes, Set<String> keep) throws IOException {
+
+        if(!Files.isDirectory(sideDir))
+            return 0;
+        keep = new HashSet<>(keep);
+        for (Directory index : indexes)
+            for (SegmentCommitInfo info : SegmentInfos.readLatestCommit(index))
+                if(null != info.info.getId())
+                    keep.add(sideFileName(info.info.name, info.info.getId()));
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(sideDir, "*.col")) {
+            for (Path file : files) {
+                if(keep.contains(file.getFileName().toString()))
+                    continue;
+                try {
+                    Files.delete(file);
+                    deleted++;
+                }
+                catch (IOException ex) {
+                    // e.g. still mapped, where the file system does not allow it: left for the next time
+                }
+            }
+        }
+        return deleted;
+    } // ends deleteStale()
+
+    /**
+     * Returns the lookup of a reopened (refreshed) version of the index; the columns of
+     * the segments common to both are shared.
+     * @param newReader The reopened reader
+     * @param newHeapColumns The cache of the columns in the heap, of 'newReader'
+     * @return The lookup of 'newReader'
+     * @throws IOException
+     */
+    public DocIdLookup reopened(IndexReader newReader, MemoryBudget.Cache<Object, BufferColumn> newHeapColumns) throws IOException {
+        return new DocIdLookup(newReader, docIdDir, newHeapColumns, this);
+    }
+
+    /**
+     * Returns the docid of a document.
+     * @param luceneDocId The lucene docid, in the whole index
+     * @return The docid (FIELD_ID); null, if the document has none
+     * @throws IOException
+     */
+    public String get(int luceneDocId) throws IOException {
+
+        int i = (1 == docStarts.length) ? 0 : ReaderUtil.subIndex(luceneDocId, docStarts);
+        Column column = columns[i];
+        if(null == column)
+            column = heapColumn(i);     // not built yet
+        return column.get(luceneDocId - docStarts[i]);
+    }
+
+    /**
+     * Returns the column of the i-th segment in the heap, building it at the first call:
+     * once, as it is pinned; or, if it does not fit in the budget, the stored fields.
+     */
+    private synchronized Column heapColumn(int i) throws IOException {
+
+        if(null != columns[i])
+            return columns[i];      // built by another thread meanwhile
+        LeafReader leaf = leaves[i];
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] offsets = collect(leaf, data);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 4 * offsets.length + data.size());
+        buffer.putInt(MAGIC).putInt(leaf.maxDoc());
+        for (int offset : offsets)
+            buffer.putInt(offset);
+        buffer.put(data.toByteArray());
+        numInHeap--;
+        return columns[i] = pinned(i, new BufferColumn(buffer, leaf.maxDoc()));
+    }
+
+    /**
+     * Pins the heap column of the i-th segment in the cache; returns it, or the stored fields
+     * of the segment if it does not fit in the budget.
+     */
+    private Column pinned(int i, BufferColumn column) {
+
+        if(heapColumns.pin(coreKeys[i], column, HEAP_COLUMN_BYTES + column.buffer.capacity())) {
+            numInHeap++;
+            return column;
+        }
+        System.err.println("Docid column of "+leaves[i].maxDoc()+" documents does not fit in the cache budget; "
+            + "read from the stored fields");
+        numStored++;
+        return new StoredFieldsColumn(leaves[i]);
+    }
+
+    /**
+     * Returns the column of a segment; null, if it is to be in the heap.
+     */
+    private Column openColumn(LeafReader leaf) throws IOException {
+
+        FieldInfo fieldInfo = leaf.getFieldInfos().fieldInfo(CommonVariables.FIELD_ID);
+        if(null != fieldInfo && (fieldInfo.getDocValuesType() == DocValuesType.SORTED
+            || fieldInfo.getDocValuesType() == DocValuesType.BINARY)) {
+            numDocValues++;
+            return new DocValuesColumn(leaf, fieldInfo.getDocValuesType() == DocValuesType.SORTED);
+        }
+
+        Path sideFile = noSideFiles ? null : sideFile(leaf, docIdDir);
+        if(null != sideFile) {
+            try {
+                ByteBuffer buffer = map(sideFile, leaf.maxDoc());
+                if(null == buffer) {
+                    build(leaf, sideFile);
+                    numBuilt++;
+                    buffer = map(sideFile, leaf.maxDoc());
+                }
+                if(null != buffer) {
+                    numSideFiles++;
+                    return new BufferColumn(buffer, leaf.maxDoc());
+                }
+            }
+            catch (IOException ex) {
+                System.err.println("Docid side file "+sideFile+" can not be made: "+ex+"; the columns are built in the heap");
+                noSideFiles = true;
+            }
+        }
+
+        numInHeap++;
+        return null;    // built when first needed
+    } // ends openColumn()
+
+    /**
+     * Returns the path of the side file of a segment, in 'docIdDir' (if not null); null, if
+     * the segment is not in a file system directory, or has no id.
+     */
+    static Path sideFile(LeafReader leaf, String docIdDir) {
+
+        FSDirectory directory = segmentDirectory(leaf);
+        if(null == directory)
+            return null;
+        SegmentReader segment = (SegmentReader) FilterLeafReader.unwrap(leaf);
+        byte[] id = segment.getSegmentInfo().info.getId();
+        if(null == id)
+            return null;    // the name alone is not unique
+        Path indexDir = directory.getDirectory().toAbsolutePath();
+        Path sideDir = (null != docIdDir) ? Paths.get(docIdDir) : indexDir.resolveSibling(indexDir.getFileName()+".docids");
+        return sideDir.resolve(sideFileName(segment.getSegmentName(), id));
+    }
+
+    /**
+     * Returns the file system directory of the segment; null, if it is not a segment in one.
+     */
+    static FSDirectory segmentDirectory(LeafReader leaf) {
+
+        LeafReader unwrapped = FilterLeafReader.unwrap(leaf);
+        if(!(unwrapped instanceof SegmentReader))
+            return null;
+        Directory directory = FilterDirectory.unwrap(((SegmentReader) unwrapped).directory());
+        return (directory instanceof FSDirectory) ? (FSDirectory) directory : null;
+    }
+
+    static String sideFileName(String segmentName, byte[] id) {
+        return segmentName+"-"+StringHelper.idToString(id)+".col";
+    }
+
+    /**
+     * Maps the side file; null, if it does not exist or is not of a segment of 'maxDoc' documents.
+     */
+    static ByteBuffer map(Path sideFile, int maxDoc) throws IOException {
+
+        if(!Files.exists(sideFile))
+            return null;
+        try (FileChannel channel = FileChannel.open(sideFile, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long dataStart = HEADER_BYTES + 4L * (maxDoc + 1);
+            if(size < dataStart)
+                return null;
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != maxDoc
+                || dataStart + buffer.getInt(HEADER_BYTES + 4 * maxDoc) != size)
+                return null;    // a partial or stale file: rebuilt
+            return buffer;
+        }
+    }
+
+    /**
+     * Writes the side file of a segment: into a temporary file, moved in place when complete.
+     */
+    static void build(LeafReader leaf, Path sideFile) throws IOException {
+
+        System.out.println("Building the docid column of "+leaf.maxDoc()+" documents in "+sideFile);
+        Files.createDirectories(sideFile.getParent());
+        Path tmp = Files.createTempFile(sideFile.getParent(), sideFile.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                long dataStart = HEADER_BYTES + 4L * (leaf.maxDoc() + 1);
+                channel.position(dataStart);
+                OutputStream data = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+                int[] offsets = collect(leaf, data);
+                data.flush();
+
+                ByteBuffer header = ByteBuffer.allocate((int) dataStart);
+                header.putInt(MAGIC).putInt(leaf.maxDoc());
+                for (int offset : offsets)
+                    header.putInt(offset);
+                header.flip();
+                for (long position = 0; header.hasRemaining(); )
+                    position += channel.write(header, position);
+            }
+            Files.move(tmp, sideFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    } // ends build()
+
+    /**
+     * Reads the docids of all the documents of the segment from the stored fields
+     * (the deleted ones too: the lucene docids stay), and writes them in 'data'.
+     * @return The offsets of the docids in 'data', with the end of the last
+     */
+    static int[] collect(LeafReader leaf, OutputStream data) throws IOException {
+
+        int maxDoc = leaf.maxDoc();
+        int[] offsets = new int[maxDoc + 1];
+        long offset = 0;
+        for (int doc = 0; doc < maxDoc; doc++) {
+            DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(CommonVariables.FIELD_ID);
+            leaf.document(doc, visitor);
+            String docId = visitor.getDocument().get(CommonVariables.FIELD_ID);
+            offsets[doc] = (int) offset;
+            if(null != docId) {
+                byte[] bytes = docId.getBytes(UTF8);
+                data.write(bytes);
+                offset += bytes.length;
+                if(offset > Integer.MAX_VALUE)
+                    throw new IOException("Docids of the segment exceed 2GB");
+            }
+        }
+        offsets[maxDoc] = (int) offset;
+        return offsets;
+    }
+}
@@ -148,6 +148,45 @@ public class DocumentVector {
         return dv;
     }
 
+    /**
+     * Returns the document vector for a document with lucene-docid=luceneDocId;
+     * the idf and the collection probability of the terms are taken from the
+     * cached statistics of the shared index, instead of being looked up for each document.
+     * @param luceneDocId
+     * @param index The shared index
+     * @return document vector
+     * @throws IOException
+     */
+    public DocumentVector getDocumentVector(int luceneDocId, IndexRegistry.SharedIndex index) throws IOException {
+
+        DocumentVector dv = new DocumentVector(field);
+        int docSize = 0;
+
+        // t vector for this document and field, or null if t vectors were not indexed
+        Terms terms = index.indexReader.getTermVector(luceneDocId, field);
+        if(null == terms) {
+            System.err.println("Error getDocumentVector(): Term vectors not indexed: "+luceneDocId);
+            return null;
+        }
+
+        TermsEnum iterator = terms.iterator();
+        BytesRef byteRef = null;
+
+        //* for each word in the document
+        while((byteRef = iterator.next()) != null) {
+            String term = new String(byteRef.bytes, byteRef.offset, byteRef.length);
+            long termFreq = iterator.totalTermFreq();    // tf of 't'
+            docSize += termFreq;
+
+            //* termFreq = cf, in a document; df = 1, in a document
+            PerTermStat cs = index.getTermStat(field, term);
+            dv.docPerTermStat.put(term, new PerTermStat(term, termFreq, 1, cs.getIDF(), cs.getNormalizedCF()));
+        }
+        dv.size = docSize;
+
+        return dv;
+    }
+
     public double getIdf(String term, IndexReader indexReader, String fieldName) throws IOException {
         int docCount = indexReader.maxDoc();      // total number of documents in the index
         Term termInstance = new Term(fieldName, term);
@@ -0,0 +1,528 @@
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Opens each index (and each analyzer) once, and shares it among all the runs
+ * pointing to the same indexPath (stopFilePath), e.g. the jobs of a job file run in one JVM.
+ * The collection statistics of the terms looked up through a SharedIndex are
+ * cached and shared as well. <p>
+ * A comma separated list of paths opens the indexes as the shards of one index:
+ * a MultiReader, whose docFreq, totalTermFreq, maxDoc and the sums of the term frequencies
+ * are summed over the shards. So the similarity and the RM3 smoothing and idf use the
+ * global statistics of the collection, and the results are the same as of one unsharded index. <p>
+ * An index can be given a name with define(), and acquired by that name. The caches of all
+ * the indexes draw from one {@link MemoryBudget}, evicting the least recently used entries
+ * across the indexes; report() prints the usage. The docids are looked up in the
+ * columns of a {@link DocIdLookup}, with the side files in 'docIdDir'.
+ * @author dwaipayan
+ */
+public class IndexRegistry {
+
+    /**
+     * An opened index, with the cached collection statistics of its terms, the
+     * vectors of its documents and the docid columns built in the heap, drawing from a
+     * MemoryBudget; and the lookup of the docids.
+     */
+    public static class SharedIndex {
+
+        // estimated sizes of the cache entries, in bytes, besides the chars of the strings
+        static final long           TERM_STAT_BYTES = 160;  // PerTermStat, its term, and the map entry
+        static final long           DOC_VECTOR_BYTES = 120; // DocumentVector, its map, and the cache entry
+        /**
+         * Path of the index.
+         */
+        public final String         indexPath;
+        /**
+         * Name of the index in the registry; indexPath, if not named.
+         */
+        public final String         name;
+        /**
+         * The reader of the index, shared by all the users; not to be closed by them.
+         */
+        public final IndexReader    indexReader;
+        /**
+         * Number of users currently holding this index.
+         */
+        int                         refCount;
+        /**
+         * The budget of the caches.
+         */
+        final MemoryBudget          budget;
+        /**
+         * PerTermStat (cf, df, idf, normalized cf) of the terms looked up, for each field.
+         */
+        final ConcurrentHashMap<String, MemoryBudget.Cache<String, PerTermStat>> termStats;
+        /**
+         * Vectors of the documents read, for each field.
+         */
+        final ConcurrentHashMap<String, MemoryBudget.Cache<Integer, DocumentVector>> docVectors;
+        /**
+         * The docids, column-wise; null, till the first docid is looked up.
+         */
+        volatile DocIdLookup        docIdLookup;
+        /**
+         * The docid columns built in the heap (pinned), of docIdLookup; null, till it is made.
+         */
+        MemoryBudget.Cache<Object, DocIdLookup.BufferColumn> docIdColumns;
+        /**
+         * Directory of the docid side files; null, beside the index; empty, none (see DocIdLookup).
+         */
+        String                      docIdDir;
+        /**
+         * Total number of terms in the collection, for each field.
+         */
+        final ConcurrentHashMap<String, Long> vocSizes;
+
+        /**
+         * Wraps an already opened reader, with the caches in a budget of their own.
+         * @param indexPath Path (or any other name) of the index
+         * @param indexReader The opened reader
+         */
+        public SharedIndex(String indexPath, IndexReader indexReader) {
+            this(indexPath, indexPath, indexReader, MemoryBudget.defaultBudget());
+        }
+
+        /**
+         * Wraps an already opened reader.
+         * @param indexPath Path of the index
+         * @param name Name of the index, for the report of the caches
+         * @param indexReader The opened reader
+         * @param budget Budget of the caches, shared with the other indexes
+         */
+        public SharedIndex(String indexPath, String name, IndexReader indexReader, MemoryBudget budget) {
+            this.indexPath = indexPath;
+            this.name = name;
+            this.indexReader = indexReader;
+            this.budget = budget;
+            termStats = new ConcurrentHashMap<>();
+            docVectors = new ConcurrentHashMap<>();
+            vocSizes = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * Returns the number of documents in the index.
+         * @return maxDoc of the index
+         */
+        public long getDocCount() {return indexReader.maxDoc();}
+
+        /**
+         * Returns the vocabulary size of the collection for 'field'.
+         * @param field The field
+         * @return Total number of terms in the index in that field
+         * @throws IOException
+         */
+        public long getVocabularySize(String field) throws IOException {
+
+            Long vocSize = vocSizes.get(field);
+            if(null == vocSize) {
+                Terms terms = MultiFields.getFields(indexReader).terms(field);
+                if(null == terms)
+                    throw new IOException("Error getVocabularySize(): terms Null found for field: "+field);
+                vocSize = terms.getSumTotalTermFreq();
+                vocSizes.put(field, vocSize);
+            }
+            return vocSize;
+        }
+
+        /**
+         * Returns the collection statistics of 'term' in 'field'; looked up in the index only once.
+         * The returned PerTermStat is shared, and must not be modified.
+         * @param field The field
+         * @param term The term
+         * @return PerTermStat with cf, df, idf and normalized cf of the term
+         * @throws IOException
+         */
+        public PerTermStat getTermStat(String field, String term) throws IOException {
+
+            MemoryBudget.Cache<String, PerTermStat> fieldStats = termStatCache(field);
+            PerTermStat stat = fieldStats.get(term);
+            if(null == stat) {
+                Term termInstance = new Term(field, term);
+                long cf = indexReader.totalTermFreq(termInstance); // CF: total number of occurrences of term across all documents
+                long df = indexReader.docFreq(termInstance);       // DF: number of documents containing the term
+                double idf = Math.log((float)(getDocCount())/(float)(df+1));
+                stat = new PerTermStat(term, cf, df, idf, (float)cf/(float)getVocabularySize(field));
+                fieldStats.put(term, stat, TERM_STAT_BYTES + 2 * term.length());
+            }
+            return stat;
+        }
+
+        private MemoryBudget.Cache<String, PerTermStat> termStatCache(String field) {
+
+            MemoryBudget.Cache<String, PerTermStat> cache = termStats.get(field);
+            if(null == cache) {
+                synchronized (termStats) {
+                    cache = termStats.get(field);
+                    if(null == cache) {
+                        cache = budget.newCache(name+"/termStats:"+field);
+                        termStats.put(field, cache);
+                    }
+                }
+            }
+            return cache;
+        }
+
+        /**
+         * Returns the vector of a document in 'field', with the cached statistics of its terms;
+         * read from the index only once, while cached. The returned vector is shared, and
+         * must not be modified.
+         * @param field The field
+         * @param luceneDocId The lucene docid
+         * @return The document vector; null, if the term vectors of the field are not indexed
+         * @throws IOException
+         */
+        public DocumentVector getDocumentVector(String field, int luceneDocId) throws IOException {
+
+            MemoryBudget.Cache<Integer, DocumentVector> cache = docVectors.get(field);
+            if(null == cache) {
+                synchronized (docVectors) {
+                    cache = docVectors.get(field);
+                    if(null == cache) {
+                        cache = budget.newCache(name+"/docVectors:"+field);
+                        docVectors.put(field, cache);
+                    }
+                }
+            }
+            DocumentVector docV = cache.get(luceneDocId);
+            if(null == docV) {
+                docV = new DocumentVector(field).getDocumentVector(luceneDocId, this);
+                if(null == docV)
+                    return null;
+                long bytes = DOC_VECTOR_BYTES;
+                for (String term : docV.docPerTermStat.keySet())
+                    bytes += TERM_STAT_BYTES + 2 * term.length();
+                cache.put(luceneDocId, docV, bytes);
+            }
+            return docV;
+        }
+
+        /**
+         * Returns the docid (as stored in the index) of a document, from the DocIdLookup;
+         * without loading its stored fields.
+         * @param luceneDocId The lucene docid
+         * @return The docid
+         * @throws IOException
+         */
+        public String getDocId(int luceneDocId) throws IOException {
+            return docIdLookup().get(luceneDocId);
+        }
+
+        /**
+         * Returns the DocIdLookup of the index; made at the first call.
+         */
+        DocIdLookup docIdLookup() throws IOException {
+
+            DocIdLookup lookup = docIdLookup;
+            if(null == lookup) {
+                synchronized (this) {
+                    lookup = docIdLookup;
+                    if(null == lookup) {
+                        docIdColumns = budget.newCache(name+"/docIds");
+                        docIdLookup = lookup = new DocIdLookup(indexReader, docIdDir, docIdColumns);
+                    }
+                }
+            }
+            return lookup;
+        }
+
+        /**
+         * Drops the caches of this index from the budget; when the index is closed.
+         */
+        void closeCaches() {
+
+            for (MemoryBudget.Cache<String, PerTermStat> cache : termStats.values())
+                cache.close();
+            for (MemoryBudget.Cache<Integer, DocumentVector> cache : docVectors.values())
+                cache.close();
+            synchronized (this) {
+                if(null != docIdColumns)
+                    docIdColumns.close();
+            }
+        }
+
+        /**
+         * Returns the index over 'newReader', a reopened (refreshed) version of the reader of
+         * this index, with the cached statistics carried over: those of the segments added
+         * are added, and those of the segments removed (merged away) are subtracted, instead
+         * of looking up the terms in all the segments again. The statistics are the same as
+         * of newReader, as docFreq and totalTermFreq count the deleted documents, till the
+         * segment having them is merged.
+         * @param newReader The reopened reader
+         * @return The index over newReader; this one is left unchanged
+         * @throws IOException
+         */
+        public SharedIndex reopened(IndexReader newReader) throws IOException {
+
+            SharedIndex index = new SharedIndex(indexPath, name, newReader, budget);
+            List<LeafReader> added = newLeaves(indexReader, newReader);
+            List<LeafReader> removed = newLeaves(newReader, indexReader);
+
+            for (Map.Entry<String, Long> entry : vocSizes.entrySet()) {
+                String field = entry.getKey();
+                long vocSize = entry.getValue();
+                for (LeafReader leaf : added)
+                    vocSize += sumTotalTermFreq(leaf, field);
+                for (LeafReader leaf : removed)
+                    vocSize -= sumTotalTermFreq(leaf, field);
+                index.vocSizes.put(field, vocSize);
+            }
+
+            // the docid columns of the segments still there are shared
+            index.docIdDir = docIdDir;
+            DocIdLookup lookup = docIdLookup;
+            if(null != lookup) {
+                index.docIdColumns = budget.newCache(name+"/docIds");
+                index.docIdLookup = lookup.reopened(newReader, index.docIdColumns);
+            }
+
+            // the document vectors are not carried over: the lucene docids change with the merges
+            for (Map.Entry<String, MemoryBudget.Cache<String, PerTermStat>> fieldStats : termStats.entrySet()) {
+                String field = fieldStats.getKey();
+                MemoryBudget.Cache<String, PerTermStat> stats = index.termStatCache(field);
+                for (PerTermStat stat : fieldStats.getValue().entries().values()) {
+                    Term termInstance = new Term(field, stat.t);
+                    long cf = stat.getCF();
+                    long df = stat.getDF();
+                    for (LeafReader leaf : added) {
+                        cf += leaf.totalTermFreq(termInstance);
+                        df += leaf.docFreq(termInstance);
+                    }
+                    for (LeafReader leaf : removed) {
+                        cf -= leaf.totalTermFreq(termInstance);
+                        df -= leaf.docFreq(termInstance);
+                    }
+                    double idf = Math.log((float)(index.getDocCount())/(float)(df+1));
+                    stats.put(stat.t, new PerTermStat(stat.t, cf, df, idf, (float)cf/(float)index.getVocabularySize(field)),
+                        TERM_STAT_BYTES + 2 * stat.t.length());
+                }
+            }
+            return index;
+        } // ends reopened()
+
+        /**
+         * Returns the segments of 'reader' that are not in 'base'.
+         */
+        private static List<LeafReader> newLeaves(IndexReader base, IndexReader reader) {
+
+            HashMap<Object, LeafReader> baseLeaves = new HashMap<>();
+            for (LeafReaderContext context : base.leaves())
+                baseLeaves.put(context.reader().getCoreCacheKey(), context.reader());
+            List<LeafReader> leaves = new ArrayList<>();
+            for (LeafReaderContext context : reader.leaves())
+                if(!baseLeaves.containsKey(context.reader().getCoreCacheKey()))
+                    leaves.add(context.reader());
+            return leaves;
+        }
+
+        private static long sumTotalTermFreq(LeafReader leaf, String field) throws IOException {
+
+            Terms terms = leaf.terms(field);
+            return (null == terms) ? 0 : terms.getSumTotalTermFreq();
+        }
+    }
+
+    /**
+     * Opened indexes, keyed by indexPath.
+     */
+    HashMap<String, SharedIndex>    indexes;
+    /**
+     * Analyzers, keyed by the path of the stopword file.
+     */
+    HashMap<String, Analyzer>       analyzers;
+    /**
+     * Paths of the named indexes, keyed by the name.
+     */
+    HashMap<String, String>         namedPaths;
+    /**
+     * If true, the indexes are kept open till close(), even when no one is holding them.
+     */
+    boolean                         keepOpen;
+    /**
+     * Budget of the caches of all the indexes.
+     */
+    MemoryBudget                    budget;
+    /**
+     * Directory of the docid side files of all the indexes; null, beside each index
+     * (&lt;index-dir&gt;.docids); empty, none: the docid columns are built in the heap.
+     */
+    String                          docIdDir;
+
+    /**
+     * @param keepOpen true, to keep the indexes open till close() (for a sequence of runs);
+     *  false, to close an index as soon as the last user releases it
+     */
+    public IndexRegistry(boolean keepOpen) {
+        this(keepOpen, MemoryBudget.defaultBudget());
+    }
+
+    /**
+     * @param keepOpen See above
+     * @param budget Budget of the caches of all the indexes
+     */
+    public IndexRegistry(boolean keepOpen, MemoryBudget budget) {
+        this(keepOpen, budget, null);
+    }
+
+    /**
+     * @param keepOpen See above
+     * @param budget See above
+     * @param docIdDir Directory of the docid side files of all the indexes; null, beside
+     *  each index; empty, for none (see {@link DocIdLookup})
+     */
+    public IndexRegistry(boolean keepOpen, MemoryBudget budget, String docIdDir) {
+        this.keepOpen = keepOpen;
+        this.budget = budget;
+        this.docIdDir = docIdDir;
+        indexes = new HashMap<>();
+        analyzers = new HashMap<>();
+        namedPaths = new HashMap<>();
+    }
+
+    /**
+     * Names an index, to be acquired by the name.
+     * @param name The name
+     * @param indexPath Path of the index; or a comma separated list of the paths of its shards
+     */
+    public synchronized void define(String name, String indexPath) {
+
+        String old = namedPaths.get(name);
+        if(null != old && !old.equals(indexPath))
+            throw new IllegalArgumentException("Index "+name+" is already defined as "+old);
+        namedPaths.put(name, indexPath);
+    }
+
+    /**
+     * Returns the index named (or at) 'indexPath', opening it if not already open.
+     * Must be paired with a release().
+     * @param indexPath Name of the index; or the path of the index, or a comma separated
+     *  list of the paths of its shards
+     * @return The shared index
+     * @throws IOException If the index (any of the shards) does not exist
+     */
+    public synchronized SharedIndex acquire(String indexPath) throws IOException {
+
+        String name = indexPath;
+        if(namedPaths.containsKey(name))
+            indexPath = namedPaths.get(name);
+        SharedIndex index = indexes.get(indexPath);
+        if(null == index) {
+            String[] shardPaths = indexPath.split(",");
+            List<IndexReader> shards = new ArrayList<>();
+            try {
+                for (String shardPath : shardPaths)
+                    shards.add(openIndex(shardPath.trim()));
+            }
+            catch (IOException ex) {
+                for (IndexReader shard : shards)
+                    shard.close();
+                throw ex;
+            }
+            IndexReader indexReader;
+            if(1 == shards.size())
+                indexReader = shards.get(0);
+            else {
+                // closing it closes the shards
+                indexReader = new MultiReader(shards.toArray(new IndexReader[shards.size()]), true);
+                System.out.println("Searching "+shards.size()+" shards as one index of "+indexReader.maxDoc()+" documents");
+            }
+            index = new SharedIndex(indexPath, name, indexReader, budget);
+            index.docIdDir = docIdDir;
+            indexes.put(indexPath, index);
+        }
+        index.refCount++;
+        return index;
+    }
+
+    /**
+     * Opens the index at 'indexPath'.
+     * @throws IOException If the index does not exist
+     */
+    private static IndexReader openIndex(String indexPath) throws IOException {
+
+        Directory indexDir = FSDirectory.open(new File(indexPath).toPath());
+        if (!DirectoryReader.indexExists(indexDir))
+            throw new IOException("Index doesn't exists in "+indexPath);
+        IndexReader indexReader = DirectoryReader.open(indexDir);
+        System.out.println("Index opened: "+indexPath);
+        return indexReader;
+    }
+
+    /**
+     * Releases an index got from acquire().
+     * @param index The index
+     * @throws IOException
+     */
+    public synchronized void release(SharedIndex index) throws IOException {
+
+        index.refCount--;
+        if(0 == index.refCount && !keepOpen) {
+            indexes.remove(index.indexPath);
+            index.closeCaches();
+            index.indexReader.close();
+        }
+    }
+
+    /**
+     * Returns the budget of the caches of all the indexes.
+     */
+    public MemoryBudget getBudget() {return budget;}
+
+    /**
+     * Prints the memory used by the caches of the indexes.
+     */
+    public void report() {
+        budget.report();
+    }
+
+    /**
+     * Returns the EnglishAnalyzer with the stopword list at 'stopFilePath'; made only once.
+     * @param stopFilePath Path of the stopword file; null for the default one
+     * @return The analyzer
+     */
+    public synchronized Analyzer getAnalyzer(String stopFilePath) {
+
+        String key = (null == stopFilePath) ? "" : stopFilePath;
+        Analyzer analyzer = analyzers.get(key);
+        if(null == analyzer) {
+            EnglishAnalyzerWithSmartStopword engAnalyzer;
+            if (null == stopFilePath)
+                engAnalyzer = new EnglishAnalyzerWithSmartStopword();
+            else
+                engAnalyzer = new EnglishAnalyzerWithSmartStopword(stopFilePath);
+            analyzer = engAnalyzer.setAndGetEnglishAnalyzerWithSmartStopword();
+            analyzers.put(key, analyzer);
+        }
+        return analyzer;
+    }
+
+    /**
+     * Closes all the indexes.
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+
+        for (SharedIndex index : indexes.values()) {
+            index.closeCaches();
+            index.indexReader.close();
+        }
+        indexes.clear();
+    }
+}
@@ -0,0 +1,376 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One memory budget shared by the caches of all the indexes of a registry (the term
+ * statistics, the document vectors and the docid columns in the heap, of each index):
+ * when the estimated size of all the caches together exceeds the budget, the least recently
+ * used entries are evicted, from whichever cache (and index) they are in, down to 95% of the
+ * budget. <p>
+ * Each cache is split into stripes, each an access-ordered LinkedHashMap with its own
+ * lock, so that the lookups of concurrent queries seldom wait for each other; the
+ * eldest entry of a stripe is its least recently used one, and the eviction takes the
+ * least recently used of those: the eldest entries of all the stripes are collected once
+ * into a heap, and the stripe evicted from is pushed back with its next eldest, so that
+ * an entry evicted costs one stripe lock. The sizes are estimates, given by the caller of put(). <p>
+ * An entry may be pinned instead, outside of the LRU order: it counts against the budget
+ * but is never evicted, and is refused if the pinned entries would exceed the budget. <p>
+ * Property 'cache.budgetMB' (default: a quarter of the maximum heap).
+ * @author dwaipayan
+ */
+public class MemoryBudget {
+
+    static final int    NUM_STRIPES = 16;
+
+    final long          budget;         // in bytes
+    final AtomicLong    used = new AtomicLong();    // estimated bytes held by all the caches
+    final AtomicLong    pinned = new AtomicLong();  // of those, the bytes of the pinned entries
+    final AtomicLong    clock = new AtomicLong();   // ticks of the accesses, for the LRU order across the caches
+    final List<Cache<?, ?>> caches = new CopyOnWriteArrayList<>();
+    final Object        evictionLock = new Object();
+    final AtomicLong    evictions = new AtomicLong();
+
+    /**
+     * @param budget The budget, in bytes
+     */
+    public MemoryBudget(long budget) {
+        if(budget <= 0)
+            throw new IllegalArgumentException("cache budget must be positive: "+budget);
+        this.budget = budget;
+    }
+
+    /**
+     * Returns a budget of a quarter of the maximum heap.
+     */
+    public static MemoryBudget defaultBudget() {
+        return new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Returns a budget of 'cache.budgetMB' megabytes (default: a quarter of the maximum heap).
+     * @param prop The properties
+     * @return The budget
+     */
+    public static MemoryBudget fromProperties(Properties prop) {
+
+        String mb = prop.getProperty("cache.budgetMB");
+        return (null == mb) ? defaultBudget() : new MemoryBudget(Long.parseLong(mb.trim()) << 20);
+    }
+
+    /**
+     * Creates a cache drawing from this budget.
+     * @param name Name of the cache, for the report
+     * @return The cache
+     */
+    public <K, V> Cache<K, V> newCache(String name) {
+
+        Cache<K, V> cache = new Cache<>(name);
+        caches.add(cache);
+        return cache;
+    }
+
+    /**
+     * An entry of a cache, with its estimated size and the tick of its last access.
+     */
+    static class Entry<V> {
+        final V         value;
+        final long      bytes;
+        long            tick;
+
+        Entry(V value, long bytes, long tick) {
+            this.value = value;
+            this.bytes = bytes;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * A cache whose entries count against the budget; thread-safe.
+     */
+    public class Cache<K, V> {
+
+        final String    name;
+        final List<LinkedHashMap<K, Entry<V>>> stripes = new ArrayList<>();
+        final HashMap<K, Entry<V>> pinnedEntries = new HashMap<>();    // never evicted; guarded by itself
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong evicted = new AtomicLong();
+        volatile boolean closed;
+
+        Cache(String name) {
+            this.name = name;
+            for (int i = 0; i < NUM_STRIPES; i++)
+                stripes.add(new LinkedHashMap<K, Entry<V>>(16, 0.75f, true));
+        }
+
+        private LinkedHashMap<K, Entry<V>> stripe(Object key) {
+            int h = key.hashCode();
+            return stripes.get((h ^ (h >>> 16)) & (NUM_STRIPES - 1));
+        }
+
+        /**
+         * Returns the cached value of 'key'; null, if not cached.
+         */
+        public V get(K key) {
+
+            LinkedHashMap<K, Entry<V>> stripe = stripe(key);
+            synchronized (stripe) {
+                Entry<V> entry = stripe.get(key);
+                if(null != entry) {
+                    entry.tick = clock.incrementAndGet();
+                    hits.incrementAndGet();
+                    return entry.value;
+                }
+            }
+            synchronized (pinnedEntries) {
+                Entry<V> entry = pinnedEntries.get(key);
+                if(null == entry) {
+                    misses.incrementAndGet();
+                    return null;
+                }
+                hits.incrementAndGet();
+                return entry.value;
+            }
+        }
+
+        /**
+         * Caches 'value' for 'key', evicting the least recently used entries of all the
+         * caches if the budget is exceeded.
+         * @param key The key
+         * @param value The value
+         * @param size Estimated size of the entry (key and value), in bytes
+         */
+        public void put(K key, V value, long size) {
+
+            LinkedHashMap<K, Entry<V>> stripe = stripe(key);
+            synchronized (stripe) {
+                if(closed)
+                    return;
+                Entry<V> old = stripe.put(key, new Entry<>(value, size, clock.incrementAndGet()));
+                long delta = size - ((null == old) ? 0 : old.bytes);
+                bytes.addAndGet(delta);
+                used.addAndGet(delta);
+            }
+            if(used.get() > budget)
+                evict();
+        }
+
+        /**
+         * Caches 'value' for 'key', pinned: it is not evicted, till unpin() or close().
+         * The least recently used entries of all the caches are evicted to make room for it.
+         * @param key The key; not to be put() too
+         * @param value The value
+         * @param size Estimated size of the entry (key and value), in bytes
+         * @return false, if it is refused: the pinned entries of all the caches would exceed the budget
+         */
+        public boolean pin(K key, V value, long size) {
+
+            synchronized (pinnedEntries) {
+                if(closed)
+                    return false;
+                long current;
+                do {
+                    current = pinned.get();
+                    if(current + size > budget)
+                        return false;
+                } while(!pinned.compareAndSet(current, current + size));
+                Entry<V> old = pinnedEntries.put(key, new Entry<>(value, size, 0));
+                long delta = size - ((null == old) ? 0 : old.bytes);
+                if(null != old)
+                    pinned.addAndGet(-old.bytes);
+                bytes.addAndGet(delta);
+                used.addAndGet(delta);
+            }
+            if(used.get() > budget)
+                evict();
+            return true;
+        }
+
+        /**
+         * Drops the pinned entry of 'key' from the cache (and the budget); to be pinned in another
+         * cache, e.g. of the reopened index.
+         * @return The value; null, if not pinned
+         */
+        public V unpin(K key) {
+
+            synchronized (pinnedEntries) {
+                Entry<V> entry = pinnedEntries.remove(key);
+                if(null == entry)
+                    return null;
+                pinned.addAndGet(-entry.bytes);
+                bytes.addAndGet(-entry.bytes);
+                used.addAndGet(-entry.bytes);
+                return entry.value;
+            }
+        }
+
+        /**
+         * Returns a copy of the cached entries.
+         */
+        public Map<K, V> entries() {
+
+            LinkedHashMap<K, V> copy = new LinkedHashMap<>();
+            for (LinkedHashMap<K, Entry<V>> stripe : stripes) {
+                synchronized (stripe) {
+                    for (Map.Entry<K, Entry<V>> entry : stripe.entrySet())
+                        copy.put(entry.getKey(), entry.getValue().value);
+                }
+            }
+            synchronized (pinnedEntries) {
+                for (Map.Entry<K, Entry<V>> entry : pinnedEntries.entrySet())
+                    copy.put(entry.getKey(), entry.getValue().value);
+            }
+            return copy;
+        }
+
+        public long size() {
+            long size = 0;
+            for (LinkedHashMap<K, Entry<V>> stripe : stripes)
+                synchronized (stripe) {size += stripe.size();}
+            synchronized (pinnedEntries) {size += pinnedEntries.size();}
+            return size;
+        }
+
+        /**
+         * Drops all the entries, and the cache from the budget; the cache is not to be used after.
+         */
+        public void close() {
+
+            closed = true;
+            for (LinkedHashMap<K, Entry<V>> stripe : stripes) {
+                synchronized (stripe) {
+                    long freed = 0;
+                    for (Entry<V> entry : stripe.values())
+                        freed += entry.bytes;
+                    stripe.clear();
+                    bytes.addAndGet(-freed);
+                    used.addAndGet(-freed);
+                }
+            }
+            synchronized (pinnedEntries) {
+                long freed = 0;
+                for (Entry<V> entry : pinnedEntries.values())
+                    freed += entry.bytes;
+                pinnedEntries.clear();
+                pinned.addAndGet(-freed);
+                bytes.addAndGet(-freed);
+                used.addAndGet(-freed);
+            }
+            caches.remove(this);
+        }
+
+        /**
+         * Tick of the least recently used entry of the i-th stripe; Long.MAX_VALUE, if empty.
+         */
+        private long eldestTick(int i) {
+            LinkedHashMap<K, Entry<V>> stripe = stripes.get(i);
+            synchronized (stripe) {
+                Iterator<Entry<V>> it = stripe.values().iterator();
+                return it.hasNext() ? it.next().tick : Long.MAX_VALUE;
+            }
+        }
+
+        /**
+         * Evicts the least recently used entry of the i-th stripe.
+         * @return Tick of the next least recently used entry of the stripe; Long.MAX_VALUE, if none
+         */
+        private long evictEldest(int i) {
+            LinkedHashMap<K, Entry<V>> stripe = stripes.get(i);
+            synchronized (stripe) {
+                Iterator<Entry<V>> it = stripe.values().iterator();
+                if(!it.hasNext())
+                    return Long.MAX_VALUE;
+                Entry<V> entry = it.next();
+                it.remove();
+                bytes.addAndGet(-entry.bytes);
+                used.addAndGet(-entry.bytes);
+                evicted.incrementAndGet();
+                evictions.incrementAndGet();
+                return it.hasNext() ? it.next().tick : Long.MAX_VALUE;
+            }
+        }
+    } // ends class Cache
+
+    /**
+     * A stripe of a cache, with the tick of its least recently used entry.
+     */
+    static class StripeHead {
+        final Cache<?, ?>   cache;
+        final int           stripe;
+        long                tick;
+
+        StripeHead(Cache<?, ?> cache, int stripe, long tick) {
+            this.cache = cache;
+            this.stripe = stripe;
+            this.tick = tick;
+        }
+    }
+
+    static final Comparator<StripeHead> ELDEST_FIRST = new Comparator<StripeHead>() {
+        @Override
+        public int compare(StripeHead h1, StripeHead h2) {
+            return Long.compare(h1.tick, h2.tick);
+        }
+    };
+
+    /**
+     * Evicts the least recently used entries across all the caches, down to 95% of the budget. <p>
+     * The heads of the stripes are read once; an entry accessed while evicting is still
+     * ordered by its earlier tick, which only makes the order approximately LRU.
+     */
+    private void evict() {
+
+        synchronized (evictionLock) {
+            if(used.get() <= budget)
+                return;     // already evicted by the thread that held the lock
+            long target = budget - budget / 20;
+            PriorityQueue<StripeHead> heads = new PriorityQueue<>(Math.max(1, caches.size() * NUM_STRIPES), ELDEST_FIRST);
+            for (Cache<?, ?> cache : caches) {
+                for (int i = 0; i < NUM_STRIPES; i++) {
+                    long tick = cache.eldestTick(i);
+                    if(tick != Long.MAX_VALUE)
+                        heads.add(new StripeHead(cache, i, tick));
+                }
+            }
+            while(used.get() > target && !heads.isEmpty()) {
+                StripeHead head = heads.poll();
+                head.tick = head.cache.evictEldest(head.stripe);
+                if(head.tick != Long.MAX_VALUE)
+                    heads.add(head);
+            }
+        }
+    }
+
+    public long getBudget() {return budget;}
+
+    public long getUsed() {return used.get();}
+
+    public long getPinned() {return pinned.get();}
+
+    /**
+     * Prints the estimated usage of the budget, and of each cache.
+     */
+    public void report() {
+
+        System.out.println(String.format("Cache memory: %.1f of %.1f MB used (%.1f MB pinned), %d entries evicted",
+            used.get() / 1048576.0, budget / 1048576.0, pinned.get() / 1048576.0, evictions.get()));
+        for (Cache<?, ?> cache : caches) {
+            long lookups = cache.hits.get() + cache.misses.get();
+            System.out.println(String.format("  %s: %d entries, %.1f MB, %.1f%% hits of %d lookups, %d evicted",
+                cache.name, cache.size(), cache.bytes.get() / 1048576.0,
+                (lookups > 0) ? 100.0 * cache.hits.get() / lookups : 0, lookups, cache.evicted.get()));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package common;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.ReferenceManager;
+
+/**
+ * Near-real-time view of an index that is being appended to: every 'refreshMs' the
+ * reader is reopened (DirectoryReader.openIfChanged()), and the cached collection
+ * statistics are carried over by the deltas of the new segments (see
+ * {@link IndexRegistry.SharedIndex#reopened(org.apache.lucene.index.IndexReader)}). <p>
+ * A query acquire()-s the current snapshot, uses it for its initial retrieval, feedback
+ * and re-retrieval, and release()-s it. A refresh does not wait for the queries in flight:
+ * they go on with their snapshot, which is closed when the last of them releases it.
+ * <pre>
+ * IndexRegistry.SharedIndex snapshot = index.acquire();
+ * try {
+ *     ... search snapshot.indexReader ...
+ * } finally {
+ *     index.release(snapshot);
+ * }
+ * </pre>
+ * @author dwaipayan
+ */
+public class RefreshingIndex extends ReferenceManager<IndexRegistry.SharedIndex> {
+
+    ScheduledExecutorService refresher;     // null, till start()
+    long            numRefreshes;           // number of times a new snapshot was opened
+
+    /**
+     * @param index The opened index, to start with; its reader must be a DirectoryReader,
+     *  and is not closed by this (it stays open for its other users)
+     */
+    public RefreshingIndex(IndexRegistry.SharedIndex index) {
+
+        if(!(index.indexReader instanceof DirectoryReader))
+            throw new IllegalArgumentException("Only a single (unsharded) index can be refreshed: "+index.indexPath);
+        index.indexReader.incRef();     // decRef-ed, when a newer snapshot replaces it
+        current = index;
+    }
+
+    /**
+     * Starts refreshing every 'refreshMs', in a daemon thread.
+     * @param refreshMs The interval, in milliseconds
+     */
+    public synchronized void start(long refreshMs) {
+
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "index-refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    maybeRefresh();
+                }
+                catch (IOException | RuntimeException ex) {
+                    // the current snapshot is kept; tried again at the next interval
+                    System.err.println("Error refreshing the index: "+ex);
+                }
+            }
+        }, refreshMs, refreshMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected IndexRegistry.SharedIndex refreshIfNeeded(IndexRegistry.SharedIndex referenceToRefresh) throws IOException {
+
+        DirectoryReader newReader = DirectoryReader.openIfChanged((DirectoryReader) referenceToRefresh.indexReader);
+        if(null == newReader)
+            return null;
+        IndexRegistry.SharedIndex index;
+        try {
+            index = referenceToRefresh.reopened(newReader);
+        }
+        catch (IOException | RuntimeException ex) {
+            newReader.close();
+            throw ex;
+        }
+        numRefreshes++;
+        System.out.println("Index refreshed ("+numRefreshes+"): "+newReader.maxDoc()+" documents in "
+            + newReader.leaves().size()+" segments");
+        return index;
+    }
+
+    @Override
+    protected boolean tryIncRef(IndexRegistry.SharedIndex reference) {
+        return reference.indexReader.tryIncRef();
+    }
+
+    @Override
+    protected void decRef(IndexRegistry.SharedIndex reference) throws IOException {
+        reference.indexReader.decRef();
+        if(0 == reference.indexReader.getRefCount())
+            reference.closeCaches();    // a replaced snapshot, released by its last query
+    }
+
+    @Override
+    protected int getRefCount(IndexRegistry.SharedIndex reference) {
+        return reference.indexReader.getRefCount();
+    }
+
+    /**
+     * Stops refreshing, after close() released the current snapshot; the snapshots
+     * still acquired are closed when released.
+     * @throws IOException
+     */
+    @Override
+    protected synchronized void afterClose() throws IOException {
+
+        if(null != refresher) {
+            refresher.shutdownNow();
+            try {
+                refresher.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
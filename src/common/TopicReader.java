@@ -0,0 +1,373 @@
+package common;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the queries of a topic file one at a time, as they are asked for,
+ * without holding the whole file in memory. Formats: <p>
+ *  trec: TREC xml, &lt;top&gt; with &lt;num&gt;, &lt;title&gt;, &lt;desc&gt;, &lt;narr&gt;
+ *      (as read by {@link TRECQueryParser}), or &lt;query&gt; with &lt;number&gt;, &lt;text&gt;; <p>
+ *  jsonl: one json object per line, with "qid" (or "id", "number") and "title" (or "text", "query"),
+ *      and optionally "desc" and "narr"; <p>
+ *  tsv: one query per line, as qid TAB query-text. <p>
+ * The format is guessed from the file extension (.jsonl/.json, .tsv/.txt, or else trec)
+ * unless given explicitly.
+ * @author dwaipayan
+ */
+public abstract class TopicReader implements Iterator<TRECQuery>, Closeable {
+
+    TRECQuery       next;       // the query to be returned by next(); null if not read yet
+    boolean         finished;   // true, if the end of the file is reached
+    long            lineNumber; // for the error messages of the line based formats
+
+    /**
+     * Opens the topic file.
+     * @param path Path of the topic file
+     * @param format trec, jsonl, tsv; or null to guess it from the extension of the file
+     * @return The reader
+     * @throws IOException
+     */
+    public static TopicReader open(String path, String format) throws IOException {
+
+        if(null == format) {
+            String lower = path.toLowerCase();
+            if(lower.endsWith(".jsonl") || lower.endsWith(".json"))
+                format = "jsonl";
+            else if(lower.endsWith(".tsv") || lower.endsWith(".txt"))
+                format = "tsv";
+            else
+                format = "trec";
+        }
+        switch (format) {
+            case "trec":
+                return new TREC(new FileInputStream(path));
+            case "jsonl":
+                return new JSONL(new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8")));
+            case "tsv":
+                return new TSV(new BufferedReader(new InputStreamReader(new FileInputStream(path), "UTF-8")));
+            default:
+                throw new IllegalArgumentException("Unknown query format: "+format);
+        }
+    }
+
+    /**
+     * Reads all the queries of the topic file.
+     * @param path Path of the topic file
+     * @param format trec, jsonl, tsv; or null to guess it from the extension of the file
+     * @return The queries, in the order of the file
+     * @throws IOException
+     */
+    public static List<TRECQuery> readAll(String path, String format) throws IOException {
+
+        List<TRECQuery> queries = new ArrayList<>();
+        try (TopicReader reader = open(path, format)) {
+            while(reader.hasNext())
+                queries.add(reader.next());
+        }
+        return queries;
+    }
+
+    /**
+     * Reads the next query from the file.
+     * @return The query; null at the end of the file
+     * @throws IOException
+     */
+    abstract TRECQuery read() throws IOException;
+
+    @Override
+    public boolean hasNext() {
+
+        if(null == next && !finished) {
+            try {
+                next = read();
+            } catch (IOException ex) {
+                throw new RuntimeException("Error reading the topic file: "+ex.getMessage(), ex);
+            }
+            finished = (null == next);
+        }
+        return null != next;
+    }
+
+    @Override
+    public TRECQuery next() {
+
+        if(!hasNext())
+            throw new NoSuchElementException();
+        TRECQuery query = next;
+        next = null;
+        return query;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    /**
+     * TREC xml topics, read with a StAX pull parser.
+     */
+    static class TREC extends TopicReader {
+        InputStream     in;
+        XMLStreamReader xml;
+        StringBuilder   buff = new StringBuilder();
+
+        TREC(InputStream in) throws IOException {
+            this.in = in;
+            try {
+                xml = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            } catch (XMLStreamException ex) {
+                throw new IOException(ex);
+            }
+        }
+
+        @Override
+        TRECQuery read() throws IOException {
+
+            try {
+                TRECQuery query = null;
+                while(xml.hasNext()) {
+                    switch (xml.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            String start = xml.getLocalName();
+                            if(start.equalsIgnoreCase("top") || start.equalsIgnoreCase("query"))
+                                query = new TRECQuery();
+                            buff.setLength(0);
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                            buff.append(xml.getText());
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            if(null == query)
+                                break;
+                            String end = xml.getLocalName();
+                            String text = buff.toString().trim();
+                            buff.setLength(0);
+                            if(end.equalsIgnoreCase("num") || end.equalsIgnoreCase("number"))
+                                query.qid = text;
+                            else if(end.equalsIgnoreCase("title") || end.equalsIgnoreCase("text"))
+                                query.qtitle = text;
+                            else if(end.equalsIgnoreCase("desc"))
+                                query.qdesc = text;
+                            else if(end.equalsIgnoreCase("narr"))
+                                query.qnarr = text;
+                            else if(end.equalsIgnoreCase("top") || end.equalsIgnoreCase("query"))
+                                return query;
+                            break;
+                    }
+                }
+                return null;
+            } catch (XMLStreamException ex) {
+                throw new IOException(ex.getMessage(), ex);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                xml.close();
+            } catch (XMLStreamException ex) {
+                throw new IOException(ex);
+            }
+            in.close();
+        }
+    }
+
+    /**
+     * Tab separated: qid TAB query-text; empty lines are skipped.
+     */
+    static class TSV extends TopicReader {
+        BufferedReader  br;
+
+        TSV(BufferedReader br) {this.br = br;}
+
+        @Override
+        TRECQuery read() throws IOException {
+
+            String line;
+            while(null != (line = br.readLine())) {
+                lineNumber++;
+                if(line.trim().isEmpty())
+                    continue;
+                int tab = line.indexOf('\t');
+                if(tab < 0)
+                    throw new IOException("line "+lineNumber+": expected qid TAB query-text");
+                TRECQuery query = new TRECQuery();
+                query.qid = line.substring(0, tab).trim();
+                query.qtitle = line.substring(tab+1).trim();
+                return query;
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {br.close();}
+    }
+
+    /**
+     * One json object per line; empty lines are skipped.
+     */
+    static class JSONL extends TopicReader {
+        BufferedReader  br;
+
+        JSONL(BufferedReader br) {this.br = br;}
+
+        @Override
+        TRECQuery read() throws IOException {
+
+            String line;
+            while(null != (line = br.readLine())) {
+                lineNumber++;
+                if(line.trim().isEmpty())
+                    continue;
+                TRECQuery query = new TRECQuery();
+                parseObject(line, query);
+                if(null == query.qid || null == query.qtitle)
+                    throw new IOException("line "+lineNumber+": qid or query text missing");
+                return query;
+            }
+            return null;
+        }
+
+        /**
+         * Parses a flat json object, setting the fields of the query;
+         * the values other than strings and numbers are skipped.
+         */
+        private void parseObject(String line, TRECQuery query) throws IOException {
+
+            int[] pos = {skipSpace(line, 0)};
+            expect(line, pos, '{');
+            if(peek(line, pos) == '}')
+                return;
+            while(true) {
+                String key = parseString(line, pos);
+                expect(line, pos, ':');
+                String value = parseValue(line, pos);
+                switch (key) {
+                    case "qid": case "id": case "number":
+                        query.qid = value;
+                        break;
+                    case "title": case "text": case "query":
+                        query.qtitle = value;
+                        break;
+                    case "desc":
+                        query.qdesc = value;
+                        break;
+                    case "narr":
+                        query.qnarr = value;
+                        break;
+                }
+                char c = peek(line, pos);
+                pos[0]++;
+                if(c == '}')
+                    return;
+                if(c != ',')
+                    throw error("',' or '}' expected", pos);
+            }
+        }
+
+        private String parseValue(String line, int[] pos) throws IOException {
+
+            char c = peek(line, pos);
+            if(c == '"')
+                return parseString(line, pos);
+            if(c == '{' || c == '[') {  // nested: skipped
+                int depth = 0;
+                boolean inString = false;
+                for (; pos[0] < line.length(); pos[0]++) {
+                    char d = line.charAt(pos[0]);
+                    if(inString) {
+                        if(d == '\\')
+                            pos[0]++;
+                        else if(d == '"')
+                            inString = false;
+                    }
+                    else if(d == '"')
+                        inString = true;
+                    else if(d == '{' || d == '[')
+                        depth++;
+                    else if((d == '}' || d == ']') && 0 == --depth) {
+                        pos[0]++;
+                        return null;
+                    }
+                }
+                throw error("unterminated value", pos);
+            }
+            int start = pos[0];
+            while(pos[0] < line.length() && ",}] \t".indexOf(line.charAt(pos[0])) < 0)
+                pos[0]++;
+            String literal = line.substring(start, pos[0]);
+            return literal.equals("null") ? null : literal;
+        }
+
+        private String parseString(String line, int[] pos) throws IOException {
+
+            expect(line, pos, '"');
+            StringBuilder sb = new StringBuilder();
+            while(pos[0] < line.length()) {
+                char c = line.charAt(pos[0]++);
+                if(c == '"')
+                    return sb.toString();
+                if(c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if(pos[0] >= line.length())
+                    break;
+                char e = line.charAt(pos[0]++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if(pos[0]+4 > line.length())
+                            throw error("bad \\u escape", pos);
+                        sb.append((char) Integer.parseInt(line.substring(pos[0], pos[0]+4), 16));
+                        pos[0] += 4;
+                        break;
+                    default: sb.append(e);    // '"', '\\', '/'
+                }
+            }
+            throw error("unterminated string", pos);
+        }
+
+        private void expect(String line, int[] pos, char c) throws IOException {
+            if(peek(line, pos) != c)
+                throw error("'"+c+"' expected", pos);
+            pos[0]++;
+        }
+
+        private char peek(String line, int[] pos) {
+            pos[0] = skipSpace(line, pos[0]);
+            return pos[0] < line.length() ? line.charAt(pos[0]) : 0;
+        }
+
+        private static int skipSpace(String line, int pos) {
+            while(pos < line.length() && Character.isWhitespace(line.charAt(pos)))
+                pos++;
+            return pos;
+        }
+
+        private IOException error(String message, int[] pos) {
+            return new IOException("line "+lineNumber+", column "+(pos[0]+1)+": "+message);
+        }
+
+        @Override
+        public void close() throws IOException {br.close();}
+    }
+}
@@ -0,0 +1,201 @@
+package common;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writer of a TREC run (res) file, kept open for the whole run: the rows are
+ * UTF-8 encoded into one buffer, that is written out through a FileChannel when full,
+ * on flush() and on close(); or through a GZIPOutputStream, if gzipped. <p>
+ * The rows are made with appendRow(), into the StringBuilder of the query. <p>
+ * Not thread-safe: the writes of concurrent queries are to be ordered by the caller
+ * (see OrderedResWriter).
+ * @author dwaipayan
+ */
+public class TrecRunWriter implements Closeable {
+
+    static final int    BUFFER_SIZE = 1 << 16;
+    static final int    CHUNK_SIZE = 1 << 12;
+
+    String              path;
+    FileChannel         channel;        // null, if gzipped
+    OutputStream        gzipOut;        // null, if not gzipped
+    byte[]              bytes;          // the buffered rows, UTF-8 encoded
+    int                 count;          // number of bytes buffered
+    ByteBuffer          buffer;         // wraps 'bytes', for the channel
+    char[]              chars;          // a chunk of the text being written
+
+    /**
+     * Opens the res file.
+     * @param path Path of the res file
+     * @param append true, to append to the file; false, to empty it
+     * @param gzip true, to write gzipped; a gzipped file can not be appended to
+     * @throws IOException
+     */
+    public TrecRunWriter(String path, boolean append, boolean gzip) throws IOException {
+
+        if(gzip && append)
+            throw new IllegalArgumentException("A gzipped res file can not be appended to: "+path);
+        this.path = path;
+        if(gzip)
+            gzipOut = new GZIPOutputStream(new FileOutputStream(path), BUFFER_SIZE);
+        else
+            channel = new FileOutputStream(path, append).getChannel();
+        bytes = new byte[BUFFER_SIZE];
+        buffer = ByteBuffer.wrap(bytes);
+        chars = new char[CHUNK_SIZE];
+    }
+
+    /**
+     * Appends the text (the rows of one or more queries) to the file, UTF-8 encoded.
+     * @param text The text
+     * @throws IOException
+     */
+    public void write(CharSequence text) throws IOException {
+
+        int length = text.length();
+        for (int start = 0; start < length; ) {
+            // a chunk, not splitting a surrogate pair
+            int end = Math.min(length, start + CHUNK_SIZE);
+            if(end < length && Character.isHighSurrogate(text.charAt(end - 1)))
+                end--;
+            if(text instanceof StringBuilder)
+                ((StringBuilder) text).getChars(start, end, chars, 0);
+            else if(text instanceof String)
+                ((String) text).getChars(start, end, chars, 0);
+            else {
+                for (int i = start; i < end; i++)
+                    chars[i - start] = text.charAt(i);
+            }
+            encode(end - start);
+            start = end;
+        }
+    } // ends write()
+
+    /**
+     * Encodes the first 'n' chars of the chunk into the buffer.
+     */
+    private void encode(int n) throws IOException {
+
+        byte[] bytes = this.bytes;
+        char[] chars = this.chars;
+        int count = this.count;
+        for (int i = 0; i < n; i++) {
+            char c = chars[i];
+            if(c < 0x80 && count < BUFFER_SIZE) {   // mostly
+                bytes[count++] = (byte) c;
+                continue;
+            }
+            if(count > BUFFER_SIZE - 4) {
+                this.count = count;
+                drain();
+                count = 0;
+            }
+            if(c < 0x80)
+                bytes[count++] = (byte) c;
+            else if(c < 0x800) {
+                bytes[count++] = (byte) (0xc0 | (c >> 6));
+                bytes[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(chars[i + 1])) {
+                int cp = Character.toCodePoint(c, chars[++i]);
+                bytes[count++] = (byte) (0xf0 | (cp >> 18));
+                bytes[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                bytes[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                bytes[count++] = (byte) (0x80 | (cp & 0x3f));
+            }
+            else if(Character.isSurrogate(c))
+                bytes[count++] = (byte) '?';    // unpaired, as by the String encoder
+            else {
+                bytes[count++] = (byte) (0xe0 | (c >> 12));
+                bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        this.count = count;
+    } // ends encode()
+
+    /**
+     * Writes out the buffered rows.
+     */
+    private void drain() throws IOException {
+
+        if(null != channel) {
+            buffer.clear().limit(count);
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        else
+            gzipOut.write(bytes, 0, count);
+        count = 0;
+    }
+
+    /**
+     * Writes out the buffered rows to the file (to the OS; not forced to the disk).
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+
+        drain();
+        if(null != gzipOut)
+            gzipOut.flush();
+    }
+
+    /**
+     * Returns true if the res file is written gzipped.
+     * @return true, if gzipped
+     */
+    public boolean isGzipped() {return null != gzipOut;}
+
+    /**
+     * Returns the length of the file after the rows flushed so far. Not for a gzipped
+     * res file (see isGzipped()), that has no offset to be resumed from.
+     * @return The length, in bytes
+     * @throws IOException
+     */
+    public long position() throws IOException {
+
+        if(null == channel)
+            throw new UnsupportedOperationException("No position in a gzipped res file: "+path);
+        return channel.position();
+    }
+
+    /**
+     * Writes out the buffered rows, and closes the file.
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        try {
+            drain();
+        }
+        finally {
+            if(null != channel)
+                channel.close();
+            else
+                gzipOut.close();
+        }
+    }
+
+    /**
+     * Appends one row of a TREC run: "qid Q0 docid rank score runName", tab separated.
+     * @param sb The rows of the query
+     * @param qid Query id
+     * @param docId Document id
+     * @param rank Rank of the document, from 0
+     * @param score Score of the document
+     * @param runName Name of the run
+     * @return sb
+     */
+    public static StringBuilder appendRow(StringBuilder sb, String qid, String docId, int rank, float score, String runName) {
+
+        return sb.append(qid).append("\tQ0\t").append(docId).append('\t').append(rank).append('\t')
+            .append(score).append('\t').append(runName).append('\n');
+    }
+}